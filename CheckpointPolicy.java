@@ -0,0 +1,95 @@
+/**
+ * This class decides when the Writer should persist the resume state.
+ * A checkpoint is due after a number of chunks, a number of bytes or an
+ * amount of time since the last checkpoint - the first that is reached.
+ * A limit that is zero or negative is disabled.
+ * The policy is thread safe, since in transfer mode every RangeGetter
+ * reports the chunks it writes.
+ */
+public class CheckpointPolicy {
+
+    private final static long DEFAULT_MAX_CHUNKS = 2048;
+    private final static long DEFAULT_MAX_BYTES = 8 * 1024 * 1024;
+    private final static long DEFAULT_MAX_MILLIS = 1000;
+
+    private long maxChunks;
+    private long maxBytes;
+    private long maxMillis;
+
+    private long chunksSinceCheckpoint = 0;
+    private long bytesSinceCheckpoint = 0;
+    private long lastCheckpointTime;
+
+    public CheckpointPolicy(long maxChunks, long maxBytes, long maxMillis){
+        this.maxChunks = maxChunks;
+        this.maxBytes = maxBytes;
+        this.maxMillis = maxMillis;
+        this.lastCheckpointTime = System.currentTimeMillis();
+    }
+
+    /**
+     * This method creates a policy from the system properties
+     * dm.checkpoint.chunks, dm.checkpoint.bytes and dm.checkpoint.millis,
+     * using the defaults for the ones that are not given.
+     * @return the policy
+     */
+    public static CheckpointPolicy fromSystemProperties(){
+        return new CheckpointPolicy(Long.getLong("dm.checkpoint.chunks", DEFAULT_MAX_CHUNKS),
+                Long.getLong("dm.checkpoint.bytes", DEFAULT_MAX_BYTES),
+                Long.getLong("dm.checkpoint.millis", DEFAULT_MAX_MILLIS));
+    }
+
+    /**
+     * This method records that a chunk was written since the last checkpoint.
+     * @param size the size of the chunk
+     */
+    public synchronized void chunkWritten(int size){
+        this.chunksSinceCheckpoint++;
+        this.bytesSinceCheckpoint += size;
+    }
+
+    /**
+     * @return true if there are chunks that were written but not claimed by
+     * a checkpoint yet
+     */
+    public synchronized boolean hasPendingChunks(){
+        return this.chunksSinceCheckpoint > 0;
+    }
+
+    /**
+     * @return true if one of the limits was reached
+     */
+    public synchronized boolean isCheckpointDue(){
+        if (!hasPendingChunks()){
+            return false;
+        }
+        return (this.maxChunks > 0 && this.chunksSinceCheckpoint >= this.maxChunks)
+                || (this.maxBytes > 0 && this.bytesSinceCheckpoint >= this.maxBytes)
+                || (this.maxMillis > 0 && millisUntilDue() == 0);
+    }
+
+    /**
+     * @return the time in milliseconds until the time limit is reached, or
+     * maxMillis if there is nothing to checkpoint. If the time limit is
+     * disabled, returns Long.MAX_VALUE.
+     */
+    public synchronized long millisUntilDue(){
+        if (this.maxMillis <= 0){
+            return Long.MAX_VALUE;
+        }
+        if (!hasPendingChunks()){
+            return this.maxMillis;
+        }
+        long elapsed = System.currentTimeMillis() - this.lastCheckpointTime;
+        return Math.max(0, this.maxMillis - elapsed);
+    }
+
+    /**
+     * This method resets the counters once a checkpoint was made.
+     */
+    public synchronized void checkpointDone(){
+        this.chunksSinceCheckpoint = 0;
+        this.bytesSinceCheckpoint = 0;
+        this.lastCheckpointTime = System.currentTimeMillis();
+    }
+}
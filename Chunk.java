@@ -1,25 +1,29 @@
+import java.nio.ByteBuffer;
+
 /**
  * This class represents a Chunk object. Each chunk represent part of the
- * downloaded file. It holds a byte array of data and the offest of the chunk
- * in the file.
+ * downloaded file. It holds a buffer of data and the offest of the chunk
+ * in the file. The buffer is a direct buffer borrowed from the
+ * ChunkBufferPool, and the bytes between its position and its limit belong
+ * to the chunk.
  */
 public class Chunk {
 
-    private byte[] data;
-    private int offset;
+    private ByteBuffer data;
+    private long offset;
 
-    public Chunk(byte[] data, int offset) {
+    public Chunk(ByteBuffer data, long offset) {
         this.data = data;
         this.offset = offset;
     }
 
     public int getSize() {
-        return this.data.length;
+        return this.data.remaining();
     }
-    public int getOffset() {
+    public long getOffset() {
         return offset;
     }
-    public byte[] getData() {
+    public ByteBuffer getData() {
         return data;
     }
 }
@@ -0,0 +1,202 @@
+import java.nio.LongBuffer;
+
+/**
+ * This class represents a fixed size set of bits, packed 64 to a long.
+ * Besides single bits, it supports setting and clearing ranges, counting the
+ * bits that are set and finding the next set or clear bit. These work a
+ * whole word at a time, so scanning the set costs one step per 64 bits.
+ * The words are kept in a LongBuffer, which is either on the heap or a view
+ * of a memory-mapped file.
+ */
+public class ChunkBitSet {
+
+    private final static int ADDRESS_BITS_PER_WORD = 6;
+    private final static int BITS_PER_WORD = 1 << ADDRESS_BITS_PER_WORD;
+    private final static long WORD_MASK = 0xffffffffffffffffL;
+
+    private LongBuffer words;
+    private int size;
+
+    public ChunkBitSet(int size) {
+        this(LongBuffer.allocate(numOfWords(size)), size);
+    }
+
+    public ChunkBitSet(LongBuffer words, int size) {
+        this.size = size;
+        this.words = words;
+    }
+
+    /**
+     * @param size the number of bits
+     * @return the number of longs needed to hold size bits
+     */
+    public static int numOfWords(int size){
+        return wordIndex(size - 1) + 1;
+    }
+
+    private static int wordIndex(int bitIndex){
+        return bitIndex >> ADDRESS_BITS_PER_WORD;
+    }
+
+    /**
+     * @return the number of bits in the set
+     */
+    public int size(){
+        return this.size;
+    }
+
+    /**
+     * @param index the index of the bit
+     * @return true if the bit is set
+     */
+    public boolean get(int index){
+        return (this.words.get(wordIndex(index)) & (1L << index)) != 0;
+    }
+
+    /**
+     * This method sets a single bit.
+     * @param index the index of the bit
+     */
+    public void set(int index){
+        int u = wordIndex(index);
+        this.words.put(u, this.words.get(u) | (1L << index));
+    }
+
+    /**
+     * This method clears a single bit.
+     * @param index the index of the bit
+     */
+    public void clear(int index){
+        int u = wordIndex(index);
+        this.words.put(u, this.words.get(u) & ~(1L << index));
+    }
+
+    /**
+     * This method sets all the bits from fromIndex (inclusive) to toIndex
+     * (exclusive).
+     * @param fromIndex the first bit to set
+     * @param toIndex the bit after the last bit to set
+     */
+    public void set(int fromIndex, int toIndex){
+        if (fromIndex >= toIndex){
+            return;
+        }
+        int startWordIndex = wordIndex(fromIndex);
+        int endWordIndex = wordIndex(toIndex - 1);
+        long firstWordMask = WORD_MASK << fromIndex;
+        long lastWordMask = WORD_MASK >>> -toIndex;
+
+        if (startWordIndex == endWordIndex){
+            this.words.put(startWordIndex, this.words.get(startWordIndex) | (firstWordMask & lastWordMask));
+            return;
+        }
+        this.words.put(startWordIndex, this.words.get(startWordIndex) | firstWordMask);
+        for (int i = startWordIndex + 1; i < endWordIndex; i++){
+            this.words.put(i, WORD_MASK);
+        }
+        this.words.put(endWordIndex, this.words.get(endWordIndex) | lastWordMask);
+    }
+
+    /**
+     * This method clears all the bits from fromIndex (inclusive) to toIndex
+     * (exclusive).
+     * @param fromIndex the first bit to clear
+     * @param toIndex the bit after the last bit to clear
+     */
+    public void clear(int fromIndex, int toIndex){
+        if (fromIndex >= toIndex){
+            return;
+        }
+        int startWordIndex = wordIndex(fromIndex);
+        int endWordIndex = wordIndex(toIndex - 1);
+        long firstWordMask = WORD_MASK << fromIndex;
+        long lastWordMask = WORD_MASK >>> -toIndex;
+
+        if (startWordIndex == endWordIndex){
+            this.words.put(startWordIndex, this.words.get(startWordIndex) & ~(firstWordMask & lastWordMask));
+            return;
+        }
+        this.words.put(startWordIndex, this.words.get(startWordIndex) & ~firstWordMask);
+        for (int i = startWordIndex + 1; i < endWordIndex; i++){
+            this.words.put(i, 0);
+        }
+        this.words.put(endWordIndex, this.words.get(endWordIndex) & ~lastWordMask);
+    }
+
+    /**
+     * This method copies the words that differ from this set to another set
+     * of the same size, so the other set becomes equal to this one.
+     * @param target the set to copy to
+     * @return the number of words that were copied
+     */
+    public int copyChangedWords(ChunkBitSet target){
+        int copied = 0;
+        for (int i = 0; i < this.words.limit(); i++){
+            long word = this.words.get(i);
+            if (target.words.get(i) != word){
+                target.words.put(i, word);
+                copied++;
+            }
+        }
+        return copied;
+    }
+
+    /**
+     * @return the number of bits that are set
+     */
+    public int cardinality(){
+        int count = 0;
+        for (int i = 0; i < this.words.limit(); i++){
+            count += Long.bitCount(this.words.get(i));
+        }
+        return count;
+    }
+
+    /**
+     * This method finds the first bit that is set, starting from fromIndex.
+     * @param fromIndex the index to start from (inclusive)
+     * @return the index of the bit, or -1 if there is no such bit
+     */
+    public int nextSetBit(int fromIndex){
+        if (fromIndex >= this.size){
+            return -1;
+        }
+        int u = wordIndex(fromIndex);
+        long word = this.words.get(u) & (WORD_MASK << fromIndex);
+
+        while (true){
+            if (word != 0){
+                int index = (u * BITS_PER_WORD) + Long.numberOfTrailingZeros(word);
+                return index < this.size ? index : -1;
+            }
+            if (++u == this.words.limit()){
+                return -1;
+            }
+            word = this.words.get(u);
+        }
+    }
+
+    /**
+     * This method finds the first bit that is clear, starting from fromIndex.
+     * @param fromIndex the index to start from (inclusive)
+     * @return the index of the bit, or -1 if there is no such bit
+     */
+    public int nextClearBit(int fromIndex){
+        if (fromIndex >= this.size){
+            return -1;
+        }
+        int u = wordIndex(fromIndex);
+        long word = ~this.words.get(u) & (WORD_MASK << fromIndex);
+
+        while (true){
+            if (word != 0){
+                int index = (u * BITS_PER_WORD) + Long.numberOfTrailingZeros(word);
+                return index < this.size ? index : -1;
+            }
+            if (++u == this.words.limit()){
+                return -1;
+            }
+            word = ~this.words.get(u);
+        }
+    }
+}
@@ -0,0 +1,80 @@
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * This class is a bounded pool of chunk buffers. A RangeGetter borrows a
+ * buffer for every chunk it reads, and the Writer gives it back once the
+ * chunk is written, so the same buffers are used over and over. Buffers are
+ * allocated when needed, up to the size of the pool; once they are all
+ * borrowed, the RangeGetters wait for the Writer to give one back.
+ * The buffers are direct, so they are outside the heap and the Writer's
+ * FileChannel writes them without copying them to native memory first.
+ */
+public class ChunkBufferPool {
+
+    private int bufferSize;
+    private int maxBuffers;
+    private int allocated = 0;
+    private ArrayBlockingQueue<ByteBuffer> freeBuffers;
+
+    public ChunkBufferPool(int bufferSize, int maxBuffers){
+        this.bufferSize = bufferSize;
+        this.maxBuffers = maxBuffers;
+        this.freeBuffers = new ArrayBlockingQueue<ByteBuffer>(maxBuffers);
+    }
+
+    /**
+     * @return the number of bytes in all the buffers of the pool
+     */
+    public long getCapacity(){
+        return (long) bufferSize * maxBuffers;
+    }
+
+    /**
+     * This method borrows a buffer from the pool. If there is no free
+     * buffer and the pool is full, it waits until one is given back.
+     * @return an empty buffer of bufferSize bytes
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public ByteBuffer take() throws InterruptedException {
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer != null){
+            return buffer;
+        }
+        synchronized (this){
+            if (allocated < maxBuffers){
+                allocated++;
+                return ByteBuffer.allocateDirect(bufferSize);
+            }
+        }
+        return freeBuffers.take();
+    }
+
+    /**
+     * This method is the same as take, except that it doesn't wait.
+     * @return an empty buffer of bufferSize bytes, or null if there is no
+     * free buffer and the pool is full
+     */
+    public ByteBuffer poll(){
+        ByteBuffer buffer = freeBuffers.poll();
+        if (buffer != null){
+            return buffer;
+        }
+        synchronized (this){
+            if (allocated < maxBuffers){
+                allocated++;
+                return ByteBuffer.allocateDirect(bufferSize);
+            }
+        }
+        return freeBuffers.poll();
+    }
+
+    /**
+     * This method gives a buffer back to the pool.
+     * @param buffer the buffer that was borrowed with take
+     */
+    public void release(ByteBuffer buffer){
+        buffer.clear();
+        freeBuffers.offer(buffer);
+    }
+}
@@ -0,0 +1,121 @@
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * This class merges the chunks of a range into runs of contiguous chunks, so
+ * the Writer writes a run with one call instead of a seek and a write for
+ * every chunk. The chunks of the different ranges come mixed in the queue,
+ * so a run is kept for every range, by the offset where it ends - which is
+ * the offset of the next chunk of that range.
+ * A run is given back to be written once it reaches maxRunBytes. All the
+ * runs are given back once the chunks they hold reach maxPendingBytes, so
+ * the buffers they borrowed from the pool are returned in time.
+ */
+public class ChunkCoalescer {
+
+    private long maxRunBytes;
+    private long maxPendingBytes;
+    private long pendingBytes = 0;
+    private HashMap<Long, Run> runs = new HashMap<Long, Run>();
+
+    /**
+     * This class holds a run of contiguous chunks.
+     */
+    public static class Run {
+        private long offset;
+        private long size = 0;
+        private ArrayList<Chunk> chunks = new ArrayList<Chunk>();
+
+        Run(Chunk first){
+            this.offset = first.getOffset();
+            add(first);
+        }
+
+        void add(Chunk chunk){
+            this.chunks.add(chunk);
+            this.size += chunk.getSize();
+        }
+
+        /**
+         * @return the offset of the first chunk in the file
+         */
+        public long getOffset(){
+            return offset;
+        }
+
+        /**
+         * @return the offset right after the last chunk
+         */
+        public long getEnd(){
+            return offset + size;
+        }
+
+        public long getSize(){
+            return size;
+        }
+
+        public List<Chunk> getChunks(){
+            return chunks;
+        }
+    }
+
+    public ChunkCoalescer(long maxRunBytes, long maxPendingBytes){
+        this.maxRunBytes = maxRunBytes;
+        this.maxPendingBytes = maxPendingBytes;
+    }
+
+    /**
+     * This method adds a chunk to the run it continues, or starts a new run
+     * with it.
+     * @param chunk the chunk
+     * @return the runs that should be written now, usually none
+     */
+    public List<Run> add(Chunk chunk){
+        Run run = runs.remove(chunk.getOffset());
+        if (run == null){
+            run = new Run(chunk);
+        } else {
+            run.add(chunk);
+        }
+        pendingBytes += chunk.getSize();
+
+        List<Run> ready = Collections.emptyList();
+        if (run.getSize() >= maxRunBytes){
+            ready = new ArrayList<Run>();
+            ready.add(run);
+            pendingBytes -= run.getSize();
+        } else {
+            // A hedged range brings the same chunks as its twin, so two runs
+            // may end at the same offset. The other one is written now
+            Run other = runs.put(run.getEnd(), run);
+            if (other != null){
+                ready = new ArrayList<Run>();
+                ready.add(other);
+                pendingBytes -= other.getSize();
+            }
+        }
+
+        if (pendingBytes >= maxPendingBytes){
+            ready = new ArrayList<Run>(ready);
+            ready.addAll(takeAll());
+        }
+        return ready;
+    }
+
+    /**
+     * This method gives back all the runs, e.g. when there are no more
+     * chunks in the queue to add to them.
+     * @return the runs
+     */
+    public List<Run> takeAll(){
+        if (runs.isEmpty()){
+            return Collections.emptyList();
+        }
+        List<Run> all = new ArrayList<Run>(runs.values());
+        runs.clear();
+        pendingBytes = 0;
+        return all;
+    }
+}
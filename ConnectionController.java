@@ -0,0 +1,102 @@
+/**
+ * This class chooses how many connections download at once, up to the
+ * number the user asked for. It starts with a few connections, and measures
+ * the throughput of all of them together every INTERVAL: as long as one more
+ * connection makes the download faster, it adds one. A connection that
+ * didn't make it faster by at least MIN_GAIN is taken back, and no more are
+ * added for a while. When segments fail, half of the connections are taken
+ * back at once - the server, or the network, is overloaded.
+ * The number of connections is applied as the limit of segments in flight
+ * in the SegmentScheduler, so the extra RangeGetters (or connections of the
+ * event loops) wait for a segment. A lower limit takes effect at the next
+ * chunk: the segments above it put the rest of their ranges back.
+ */
+public class ConnectionController implements Runnable {
+
+    private final static int INITIAL_CONNECTIONS = 2; // Connections the download starts with
+    private final static long INTERVAL = 500; // Time between two measurements of the throughput
+    private final static double MIN_GAIN = 0.05; // How much faster another connection must make the download
+    private final static int HOLD_INTERVALS = 10; // Intervals without adding connections after taking some back
+    private SegmentScheduler scheduler;
+    private int maxConnections;
+    private int connections;
+
+    public ConnectionController(SegmentScheduler scheduler, int maxConnections){
+        this.scheduler = scheduler;
+        this.maxConnections = maxConnections;
+        // The RangeGetters may ask for segments before this thread starts
+        setConnections(Math.min(INITIAL_CONNECTIONS, maxConnections));
+    }
+
+    private void setConnections(int connections){
+        this.connections = connections;
+        this.scheduler.setLimit(connections);
+        System.out.println("Using " + connections + " of " + maxConnections + " connections");
+    }
+
+    /**
+     * Controller thread - adjusts the number of connections until the
+     * download is finished.
+     */
+    @Override
+    public void run() {
+        long lastBytes = this.scheduler.getBytesDone();
+        long lastFailures = this.scheduler.getFailures();
+        long lastTime = System.nanoTime();
+        // The throughput before the last connection was added, or -1
+        double rateBeforeIncrease = -1;
+        // A change is measured from the interval after the next one, once
+        // the connections that were added are up to speed
+        int settleIntervals = 1;
+        int holdIntervals = 0;
+
+        try {
+            while (!this.scheduler.isFinished()){
+                Thread.sleep(INTERVAL);
+                long bytes = this.scheduler.getBytesDone();
+                long failures = this.scheduler.getFailures();
+                long time = System.nanoTime();
+                double rate = (bytes - lastBytes) * 1e9 / Math.max(1, time - lastTime);
+                boolean failed = failures > lastFailures;
+                lastBytes = bytes;
+                lastFailures = failures;
+                lastTime = time;
+
+                if (failed){
+                    if (connections > 1){
+                        setConnections(Math.max(1, connections / 2));
+                    }
+                    rateBeforeIncrease = -1;
+                    settleIntervals = 1;
+                    holdIntervals = HOLD_INTERVALS;
+                    continue;
+                }
+                if (settleIntervals > 0){
+                    settleIntervals--;
+                    continue;
+                }
+                if (rateBeforeIncrease >= 0){
+                    boolean helped = rate >= rateBeforeIncrease * (1 + MIN_GAIN);
+                    rateBeforeIncrease = -1;
+                    if (!helped){
+                        setConnections(connections - 1);
+                        settleIntervals = 1;
+                        holdIntervals = HOLD_INTERVALS;
+                        continue;
+                    }
+                }
+                if (holdIntervals > 0){
+                    holdIntervals--;
+                    continue;
+                }
+                if (connections < maxConnections){
+                    rateBeforeIncrease = rate;
+                    setConnections(connections + 1);
+                    settleIntervals = 1;
+                }
+            }
+        } catch (InterruptedException e){
+            // The download is over
+        }
+    }
+}
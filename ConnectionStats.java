@@ -0,0 +1,207 @@
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.security.KeyManagementException;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import javax.net.ssl.HttpsURLConnection;
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLContextSpi;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLParameters;
+import javax.net.ssl.SSLServerSocketFactory;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import javax.net.ssl.TrustManager;
+
+/**
+ * This class counts the range requests and the TLS handshakes they cost, to
+ * show how well the connections are reused. HttpURLConnection keeps a
+ * connection alive once its response was read and closed, and the next
+ * request to the same mirror is sent on it. When a new TLS connection is
+ * needed anyway, the default SSL context resumes the session of a previous
+ * one, which saves a round trip of the handshake.
+ * The handshakes are counted by wrapping the default SSLSocketFactory of
+ * HttpsURLConnection. The HttpClients of the Http2Engine don't use it, and
+ * are given an SSLContext that counts the SSLEngines they create instead -
+ * one for every TLS connection, each with its own handshake.
+ * HttpURLConnection and HttpClient don't tell when they open a plain
+ * connection, so for plain HTTP mirrors only the requests are counted -
+ * except with the SelectorEngine, which opens its connections itself.
+ */
+public class ConnectionStats {
+
+    private final AtomicLong requests = new AtomicLong();
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong plainConnections = new AtomicLong();
+
+    /**
+     * This method makes the HTTPS connections report their handshakes.
+     * Should be called before the first connection is opened.
+     */
+    public void install(){
+        HttpsURLConnection.setDefaultSSLSocketFactory(new CountingSocketFactory(HttpsURLConnection.getDefaultSSLSocketFactory()));
+    }
+
+    /**
+     * This method creates an SSLContext for the HttpClients of the
+     * Http2Engine, which counts their TLS connections.
+     * @return the default SSLContext, counting the engines it creates
+     * @throws NoSuchAlgorithmException if there is no default SSLContext
+     */
+    public SSLContext newCountingSSLContext() throws NoSuchAlgorithmException {
+        SSLContext context = SSLContext.getDefault();
+        return new SSLContext(new CountingContextSpi(context), context.getProvider(), context.getProtocol()){};
+    }
+
+    /**
+     * This method records that a range was requested.
+     */
+    public void recordRequest(){
+        requests.incrementAndGet();
+    }
+
+    /**
+     * This method records that a plain HTTP connection was opened.
+     */
+    public void recordConnection(){
+        plainConnections.incrementAndGet();
+    }
+
+    /**
+     * This method prints the statistics.
+     */
+    public void printSummary(){
+        long numOfHandshakes = handshakes.get();
+        long numOfConnections = numOfHandshakes + plainConnections.get();
+        String summary = "Connections: " + requests.get() + " range requests";
+        if (numOfHandshakes > 0){
+            summary += ", " + numOfHandshakes + " TLS handshakes";
+        }
+        if (numOfConnections > 0){
+            summary += ", " + String.format("%.1f", (double) requests.get() / numOfConnections) + " requests per connection";
+        }
+        System.out.println(summary);
+    }
+
+    private Socket count(Socket socket){
+        if (socket instanceof SSLSocket){
+            ((SSLSocket) socket).addHandshakeCompletedListener(event -> handshakes.incrementAndGet());
+        }
+        return socket;
+    }
+
+    /**
+     * This class creates the sockets with the default factory, and listens
+     * to their handshakes.
+     */
+    private class CountingSocketFactory extends SSLSocketFactory {
+        private SSLSocketFactory factory;
+
+        CountingSocketFactory(SSLSocketFactory factory){
+            this.factory = factory;
+        }
+
+        @Override
+        public String[] getDefaultCipherSuites(){
+            return factory.getDefaultCipherSuites();
+        }
+
+        @Override
+        public String[] getSupportedCipherSuites(){
+            return factory.getSupportedCipherSuites();
+        }
+
+        @Override
+        public Socket createSocket() throws IOException {
+            return count(factory.createSocket());
+        }
+
+        @Override
+        public Socket createSocket(Socket socket, String host, int port, boolean autoClose) throws IOException {
+            return count(factory.createSocket(socket, host, port, autoClose));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            return count(factory.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            return count(factory.createSocket(host, port, localHost, localPort));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            return count(factory.createSocket(host, port));
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            return count(factory.createSocket(address, port, localAddress, localPort));
+        }
+    }
+
+    /**
+     * This class hands out the engines and sessions of an initialized
+     * SSLContext, and counts the engines that are created for a peer.
+     */
+    private class CountingContextSpi extends SSLContextSpi {
+        private SSLContext context;
+
+        CountingContextSpi(SSLContext context){
+            this.context = context;
+        }
+
+        @Override
+        protected void engineInit(KeyManager[] keyManagers, TrustManager[] trustManagers, SecureRandom random)
+                throws KeyManagementException {
+            throw new KeyManagementException("The context is already initialized");
+        }
+
+        @Override
+        protected SSLSocketFactory engineGetSocketFactory(){
+            return new CountingSocketFactory(context.getSocketFactory());
+        }
+
+        @Override
+        protected SSLServerSocketFactory engineGetServerSocketFactory(){
+            return context.getServerSocketFactory();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine(){
+            return context.createSSLEngine();
+        }
+
+        @Override
+        protected SSLEngine engineCreateSSLEngine(String host, int port){
+            handshakes.incrementAndGet();
+            return context.createSSLEngine(host, port);
+        }
+
+        @Override
+        protected SSLSessionContext engineGetServerSessionContext(){
+            return context.getServerSessionContext();
+        }
+
+        @Override
+        protected SSLSessionContext engineGetClientSessionContext(){
+            return context.getClientSessionContext();
+        }
+
+        @Override
+        protected SSLParameters engineGetDefaultSSLParameters(){
+            return context.getDefaultSSLParameters();
+        }
+
+        @Override
+        protected SSLParameters engineGetSupportedSSLParameters(){
+            return context.getSupportedSSLParameters();
+        }
+    }
+}
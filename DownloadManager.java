@@ -1,11 +1,11 @@
 import java.io.*;
-import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
-import java.util.Random;
+import java.util.List;
 import java.util.concurrent.BlockingDeque;
 import java.util.concurrent.LinkedBlockingDeque;
 
@@ -14,16 +14,20 @@ import java.util.concurrent.LinkedBlockingDeque;
  * (a few RangeGetters and one Write thread) in order to download the file.
  */
 public class DownloadManager {
-    private final static double CHUNK_SIZE  = 4096.0; // Size of chunk to download
+    private final static int MIN_CHUNK_SIZE = 4096; // Smallest chunk to download
+    private final static int MAX_CHUNK_SIZE = 4 * 1024 * 1024; // Largest chunk to download
+    private final static int TARGET_CHUNKS = 4096; // Number of chunks a large file is divided to
+    private final static int MIN_CHUNKS_PER_CONNECTION = 64; // Keeps the segments large enough to split
+    private final static int MIN_BUFFERS_PER_CONNECTION = 4; // Chunks each connection can have in flight
     private final static Path currentRelativePath = Paths.get("");
-    private final static int TIME_TO_WAIT = 2000; // Time to wait while opening connections
-    private final static int MINIMAL_FILESIZE = 256 * (int) CHUNK_SIZE; // The minimal file size is 1MB
-                                                                        // less then that downloads with one connection
+    private final static long MINIMAL_FILESIZE = 1024 * 1024; // The minimal file size is 1MB
+                                                              // less then that downloads with one connection
+    private final static long BUFFER_BYTES = 16 * 1024 * 1024; // Default bytes downloaded but not yet written
+    private final static long COALESCE_BYTES = 1024 * 1024; // Default size of the writes of contiguous chunks
+    private final static long JOIN_WAIT = 100; // Time between two looks at the writer, while waiting for the rangeGetters
     public static void main(String[] args) {
         int numOfConnections = 1;
 
-        BlockingDeque<Chunk> queue = new LinkedBlockingDeque<Chunk>();
-
         // Checks number of arguments
         if(args.length < 1 || args.length > 2){
             System.err.println("usage:\n\tjava DownloadManager URL|URL-LIST-FILE [MAX-CONCURRENT-CONNECTIONS]");
@@ -72,117 +76,228 @@ public class DownloadManager {
         }
 
         String fileNameToDownload = URLs.get(0).toString().substring(URLs.get(0).toString().lastIndexOf('/') + 1);
-        run(URLs, fileNameToDownload, numOfConnections, queue);
+        if (!run(URLs, fileNameToDownload, numOfConnections)){
+            System.exit(1);
+        }
     }
 
 
-    private static void run(ArrayList<URL> URLs, String fileNameToDownload, int numOfConnections, BlockingDeque<Chunk> queue) {
-        int fileSize = 0;
-        long numOfChunksInRange;
-        URL urlToDownload;
+    /**
+     * This method chooses the size of the chunks - the unit that is read,
+     * queued, written and marked in the metadata. Each chunk costs a queue
+     * entry, a bit and a write, so large files get larger chunks. A chunk is
+     * still small enough that each connection's share of the file has
+     * enough chunks to be split, and the buffer budget holds a few chunks for
+     * every connection. The size is a power of two between MIN_CHUNK_SIZE
+     * and MAX_CHUNK_SIZE, unless it is given with dm.chunk.bytes.
+     * @param fileSize the size of the file
+     * @param numOfConnections the number of connections
+     * @param bufferBytes the budget of bytes downloaded but not yet written
+     * @return the chunk size
+     */
+    private static int chooseChunkSize(long fileSize, int numOfConnections, long bufferBytes){
+        Integer configured = Integer.getInteger("dm.chunk.bytes");
+        if (configured != null){
+            return Math.max(1, configured);
+        }
+        long chunkSize = fileSize / Math.max(TARGET_CHUNKS, (long) MIN_CHUNKS_PER_CONNECTION * numOfConnections);
+        chunkSize = Math.min(chunkSize, bufferBytes / ((long) MIN_BUFFERS_PER_CONNECTION * numOfConnections));
+        chunkSize = Long.highestOneBit(Math.max(chunkSize, MIN_CHUNK_SIZE));
+        return (int) Math.min(chunkSize, MAX_CHUNK_SIZE);
+    }
 
-        Path metadataPath = currentRelativePath.resolve(fileNameToDownload + ".tmp");
-        File metadataFile = new File(metadataPath.toString());
+    /**
+     * This method downloads the file.
+     * @param URLs the mirrors
+     * @param fileNameToDownload the name of the downloaded file
+     * @param numOfConnections the number of connections
+     * @return false if the download stopped because a range failed
+     */
+    private static boolean run(ArrayList<URL> URLs, String fileNameToDownload, int numOfConnections) {
+        // The connections are kept alive between ranges. By default only 5
+        // idle connections per mirror are kept, so with more rangeGetters the
+        // rest would be closed after every range. Must be set before the
+        // first connection is opened
+        if (System.getProperty("http.maxConnections") == null){
+            System.setProperty("http.maxConnections", Integer.toString(Math.max(5, numOfConnections)));
+        }
+        ConnectionStats connectionStats = new ConnectionStats();
+        connectionStats.install();
 
-        boolean isOnResume = metadataFile.exists();
+        // Probes all the mirrors at once, and keeps the ones that serve the
+        // same file
+        List<MirrorProbe.Result> probeResults = MirrorProbe.probeAll(URLs);
+        if (probeResults.isEmpty()){
+            System.err.println("There was an error while sending a HTTP HEAD request to the server");
+            System.err.println("Download failed");
+            System.exit(1);
+        }
 
-        try {
-            urlToDownload = URLs.get(0);
-            HttpURLConnection connection = (HttpURLConnection) urlToDownload.openConnection();
+        long fileSize = probeResults.get(0).getContentLength();
+        if (fileSize < MINIMAL_FILESIZE){
+            numOfConnections = 1;
+        }
 
-            connection.setRequestMethod("HEAD");
-            connection.setConnectTimeout(TIME_TO_WAIT); // Sets a 2 sec timeout when the connection is established
+        ArrayList<URL> usableURLs = new ArrayList<URL>();
+        for (MirrorProbe.Result result : probeResults){
+            usableURLs.add(result.getURL());
+        }
 
-            fileSize = connection.getContentLength();
-            if (fileSize < 0) {
-                System.err.println("There was an error while sending a HTTP HEAD request to the server");
-                System.err.println("Download failed");
-                System.exit(1);
-            }
-            if (fileSize < MINIMAL_FILESIZE){
-                numOfConnections = 1;
-            }
+        long bufferBytes = Long.getLong("dm.buffer.bytes", BUFFER_BYTES);
 
-            connection.disconnect();
+        // On resume, the metadata is the bitmap of the previous run, mapped
+        // from the disk, and the chunks are of the size of the previous run.
+        // Otherwise, this is an empty metadata
+        MetadataFile metadataFile = new MetadataFile(fileNameToDownload);
+        Metadata metadata = metadataFile.open(fileSize, chooseChunkSize(fileSize, numOfConnections, bufferBytes));
+        int chunkSize = metadataFile.getChunkSize();
 
-        } catch (IOException e) {
-            System.err.println("There was an error while sending a HTTP HEAD request to the server");
+        // The scheduler divides the chunks that are missing between the
+        // rangeGetters
+        MirrorScoreboard scoreboard = new MirrorScoreboard(usableURLs);
+        for (MirrorProbe.Result result : probeResults){
+            scoreboard.recordFirstByte(result.getURL(), result.getLatencyMillis());
+        }
+        SegmentScheduler scheduler = new SegmentScheduler(scoreboard, metadata, fileSize, chunkSize, numOfConnections);
+
+        // The chunks that were downloaded but not yet written are bounded by
+        // a budget of bytes. When the writer falls behind, the rangeGetters
+        // wait for a free buffer or for room in the queue
+        int numOfBuffers = (int) Math.max(1, bufferBytes / chunkSize);
+        ChunkBufferPool bufferPool = new ChunkBufferPool(chunkSize, numOfBuffers);
+        BlockingDeque<Chunk> queue = new LinkedBlockingDeque<Chunk>(numOfBuffers);
+        QueueStats queueStats = new QueueStats();
+
+        // In transfer and mmap modes the rangeGetters write to the file
+        // themselves, and the writer only makes the checkpoints
+        String writerMode = System.getProperty("dm.writer", Writer.QUEUE_MODE);
+        if (!writerMode.equals(Writer.QUEUE_MODE) && !writerMode.equals(Writer.TRANSFER_MODE)
+                && !writerMode.equals(Writer.MMAP_MODE)){
+            System.err.println("Unknown writer mode: " + writerMode);
             System.err.println("Download failed");
             System.exit(1);
         }
 
-        // Metadata size is the number of chunks we need for the file
-        int metaDataSize = (int) Math.ceil(fileSize / CHUNK_SIZE);
-        Metadata metadata = new Metadata(metaDataSize);
-
-        if(isOnResume && metadataFile.length() > 0){
-            metadata = getMetadataObject(fileNameToDownload + ".tmp");
-        } else if (isOnResume && (metadataFile.length() == 0)){
-            // If the program stops before writing to disk but metadata file was created
-            if(!metadataFile.delete()){
-                System.err.println("Unable to establish HTTP HEAD request connection");
+        // The ranges are requested with an HttpURLConnection each, as
+        // streams over a few HTTP/2 connections per mirror, or by a few event
+        // loops that drive all the connections
+        String engine = System.getProperty("dm.engine", "url");
+        Http2Engine http2Engine = null;
+        SelectorEngine selectorEngine = null;
+        if (engine.equals("http2")){
+            try {
+                http2Engine = new Http2Engine(Math.max(1, Integer.getInteger("dm.http2.connections", 2)),
+                        connectionStats.newCountingSSLContext());
+            } catch (NoSuchAlgorithmException e){
+                System.err.println("TLS is not supported by this JVM");
+                System.err.println("Download failed");
+                System.exit(1);
+            }
+        } else if (engine.equals("nio")){
+            for (URL url : usableURLs){
+                if (!url.getProtocol().equals("http")){
+                    System.err.println("The nio engine only supports http URLs: " + url);
+                    System.err.println("Download failed");
+                    System.exit(1);
+                }
+            }
+            if (!writerMode.equals(Writer.QUEUE_MODE)){
+                System.err.println("The nio engine writes through the queue, it doesn't support writer mode: " + writerMode);
                 System.err.println("Download failed");
                 System.exit(1);
             }
+            selectorEngine = new SelectorEngine(scheduler, scoreboard, connectionStats, queue, bufferPool, queueStats);
+        } else if (!engine.equals("url")){
+            System.err.println("Unknown engine: " + engine);
+            System.err.println("Download failed");
+            System.exit(1);
+        }
+
+        int numOfWriters = Math.max(1, Integer.getInteger("dm.writers", 1));
+        long maxRunBytes = Long.getLong("dm.coalesce.bytes", COALESCE_BYTES);
+        Writer fileWriter = new Writer(writerMode, numOfWriters, maxRunBytes, queue, bufferPool, queueStats, fileNameToDownload, fileSize,
+                chunkSize, metadata, metadataFile, CheckpointPolicy.fromSystemProperties());
+        try {
+            fileWriter.open();
+        } catch (IOException e){
+            System.err.println("Unable to create file");
+            System.err.println("Download failed");
+            System.exit(1);
         }
 
-        numOfChunksInRange = metaDataSize / numOfConnections;
-        
         // Initialize writer thread
-        Thread writer = new Thread(new Writer(queue, fileNameToDownload, fileSize, metaDataSize));
+        Thread writer = new Thread(fileWriter);
 
-        // Initialize rangeGetter threads
-        Thread[] threadsPool = new Thread[numOfConnections];
-        Random r = new Random();
+        // The rangeGetters run in platform or virtual threads. If one of
+        // them fails, the scope aborts the scheduler and the others stop
+        String threadsMode = System.getProperty("dm.threads", RangeGetterScope.PLATFORM_THREADS);
+        if (!threadsMode.equals(RangeGetterScope.PLATFORM_THREADS) && !threadsMode.equals(RangeGetterScope.VIRTUAL_THREADS)){
+            System.err.println("Unknown threads mode: " + threadsMode);
+            System.err.println("Download failed");
+            System.exit(1);
+        }
+        RangeGetterScope scope = new RangeGetterScope(threadsMode.equals(RangeGetterScope.VIRTUAL_THREADS), scheduler::abort);
 
-        for (int i = 0; i < numOfConnections; i++){
-            long start = i * numOfChunksInRange * (long)CHUNK_SIZE;
-            long end = (i + 1) * numOfChunksInRange * (long) CHUNK_SIZE - 1;
+        // The number of connections that download at once is adapted to the
+        // throughput, up to numOfConnections. The first limit is set before
+        // the rangeGetters start
+        Thread controller = null;
+        if (numOfConnections > 1 && Boolean.parseBoolean(System.getProperty("dm.adaptive", "true"))){
+            controller = new Thread(new ConnectionController(scheduler, numOfConnections));
+            controller.setDaemon(true);
+            controller.start();
+        }
 
-            // If fileSize/connectionsNum  is not an integer, one thread should read more bytes
-            if (i == numOfConnections - 1) {
-                end = fileSize - 1;
+        if (selectorEngine != null){
+            // The connections are divided between the event loops
+            int numOfLoops = Math.max(1, Math.min(numOfConnections, Integer.getInteger("dm.nio.loops", 1)));
+            for (int i = 0; i < numOfLoops; i++){
+                scope.fork(selectorEngine.newLoop(numOfConnections / numOfLoops + (i < numOfConnections % numOfLoops ? 1 : 0)));
+            }
+        } else {
+            for (int i = 0; i < numOfConnections; i++){
+                scope.fork(new RangeGetter(scheduler, scoreboard, http2Engine, connectionStats, fileWriter, queue, bufferPool, queueStats));
             }
-
-            int index = r.nextInt(URLs.size());
-            urlToDownload = URLs.get(index);
-            Thread getter = new Thread(new RangeGetter(start, end, queue, urlToDownload, metadata));
-            threadsPool[i] = getter;
-            threadsPool[i].start();
         }
 
         writer.start();
 
         try {
-            writer.join();
-            for (Thread thread : threadsPool){
-                thread.join();
+            // Once the rangeGetters are done, no more chunks come. If they
+            // stopped early, the writer writes what is left and stops too.
+            // Once the writer wrote the whole file, a rangeGetter that is
+            // still stuck on the connection of a cancelled hedge isn't waited
+            // for
+            while (!scope.join(JOIN_WAIT)){
+                if (!writer.isAlive()){
+                    scheduler.abort();
+                    break;
+                }
             }
+            if (controller != null){
+                controller.interrupt();
+            }
+            if (scope.getFailure() != null){
+                fileWriter.stop();
+            }
+            writer.join();
         } catch (InterruptedException e){
             System.err.println("Failed to join threads");
             System.err.println("Download failed");
             System.exit(1);
         }
-    }
+        scoreboard.printSummary();
+        connectionStats.printSummary();
+        if (!fileWriter.isDirectMode()){
+            queueStats.printSummary(numOfBuffers);
+        }
 
-    /**
-     * This method opens the metadata file and gets the object in the file
-     * using deserialization.
-     * @return the object in the file
-     */
-    private static Metadata getMetadataObject(String metadataFilename){
-        Metadata metadataObject = null;
-        try {
-            FileInputStream fileIn = new FileInputStream(metadataFilename);
-            ObjectInputStream in = new ObjectInputStream(fileIn);
-            metadataObject = (Metadata) in.readObject();
-            in.close();
-            fileIn.close();
-        } catch (IOException | ClassNotFoundException e){
-            System.err.println("Failed while reading the object from the metadata file");
-            System.err.println("Download failed");
-            System.exit(1);
+        Throwable failure = scope.getFailure();
+        if (failure != null){
+            System.err.println(failure.getMessage() != null ? failure.getMessage() : failure.toString());
+            System.err.println("Download failed, run again to resume");
+            return false;
         }
-        return metadataObject;
+        return true;
     }
 }
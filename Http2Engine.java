@@ -0,0 +1,203 @@
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import javax.net.ssl.SSLContext;
+
+/**
+ * This class requests ranges with the HTTP client of java.net.http, instead
+ * of opening an HttpURLConnection for every range. With HTTP/2, a client
+ * sends each range request as a stream over the connection it already has
+ * to the mirror, so all the ranges share a few connections per mirror - one
+ * for each client - instead of a connection (and a TLS handshake) each. The
+ * requests are spread over the clients in turn. A client opens a connection
+ * for every request that is sent before it has one to the mirror, so the
+ * first request of a client to a mirror is sent alone, and the others wait
+ * for its response before they share its connection.
+ * A server that doesn't speak HTTP/2 is asked with HTTP/1.1 instead, over
+ * connections the client keeps alive.
+ * The client has no read timeout for the body of a response, so a watchdog
+ * closes the body of a range when a read of it waited for TIME_TO_WAIT
+ * without receiving anything, and the read fails.
+ */
+public class Http2Engine {
+
+    private final static int TIME_TO_WAIT = 10000; // Time to wait for the response to a range request
+    private final static long WATCHDOG_INTERVAL = 1000; // Time between two checks of the bodies being read
+    private HttpClient[] clients;
+    private AtomicInteger nextClient = new AtomicInteger();
+    private Set<Body> openBodies = ConcurrentHashMap.newKeySet();
+    // The first request of each client to each mirror, done once its
+    // connection is open
+    private ConcurrentHashMap<String, CompletableFuture<Void>> connected = new ConcurrentHashMap<String, CompletableFuture<Void>>();
+
+    /**
+     * @param numOfClients the number of clients, each with its own
+     * connections
+     * @param sslContext the SSLContext of the clients, e.g. one that counts
+     * their TLS connections
+     */
+    public Http2Engine(int numOfClients, SSLContext sslContext){
+        this.clients = new HttpClient[numOfClients];
+        for (int i = 0; i < numOfClients; i++){
+            this.clients[i] = HttpClient.newBuilder()
+                    .version(HttpClient.Version.HTTP_2)
+                    .connectTimeout(Duration.ofMillis(TIME_TO_WAIT))
+                    .followRedirects(HttpClient.Redirect.NORMAL)
+                    .sslContext(sslContext)
+                    .build();
+        }
+
+        ScheduledExecutorService watchdog = Executors.newSingleThreadScheduledExecutor(task -> {
+            Thread thread = new Thread(task, "http2-watchdog");
+            thread.setDaemon(true);
+            return thread;
+        });
+        watchdog.scheduleWithFixedDelay(this::closeIdleBodies, WATCHDOG_INTERVAL, WATCHDOG_INTERVAL, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Watchdog task - closes the bodies whose read waits for longer than
+     * TIME_TO_WAIT.
+     */
+    private void closeIdleBodies(){
+        long now = System.nanoTime();
+        for (Body body : openBodies){
+            long readStart = body.readStart;
+            if (readStart != 0 && now - readStart > TimeUnit.MILLISECONDS.toNanos(TIME_TO_WAIT)){
+                body.timedOut = true;
+                try {
+                    body.close();
+                } catch (IOException e){
+                    // The read fails anyway
+                }
+            }
+        }
+    }
+
+    /**
+     * This method requests a range and waits for the headers of the
+     * response. Closing the returned stream ends the request, and with
+     * HTTP/2 cancels only its stream, not the connection.
+     * @param url the mirror
+     * @param startByte the first byte of the range
+     * @param endByte the last byte of the range (inclusive)
+     * @return the body of the response
+     * @throws IOException if the request failed, or the server didn't send
+     * the range
+     * @throws InterruptedException if interrupted while waiting for the
+     * response
+     */
+    public InputStream openRange(URL url, long startByte, long endByte) throws IOException, InterruptedException {
+        HttpRequest request;
+        try {
+            request = HttpRequest.newBuilder(url.toURI())
+                    .timeout(Duration.ofMillis(TIME_TO_WAIT))
+                    .header("Range", "bytes=" + startByte + "-" + endByte)
+                    .GET()
+                    .build();
+        } catch (URISyntaxException | IllegalArgumentException e){
+            throw new IOException("Invalid URL: " + url, e);
+        }
+
+        int clientIndex = Math.floorMod(nextClient.getAndIncrement(), clients.length);
+        HttpResponse<InputStream> response = send(clientIndex, url, request);
+        try {
+            RangeGetter.checkRange(response.statusCode(), response.headers().firstValue("Content-Range").orElse(null),
+                    startByte, endByte);
+        } catch (IOException e){
+            response.body().close();
+            throw e;
+        }
+        Body body = new Body(response.body());
+        openBodies.add(body);
+        return body;
+    }
+
+    /**
+     * This method sends a request with a client. If the client has no
+     * connection to the mirror yet, the request is sent alone, or waits for
+     * the request that is opening the connection.
+     */
+    private HttpResponse<InputStream> send(int clientIndex, URL url, HttpRequest request)
+            throws IOException, InterruptedException {
+        String key = clientIndex + " " + url.getProtocol() + "://" + url.getAuthority();
+        CompletableFuture<Void> opening = new CompletableFuture<Void>();
+        CompletableFuture<Void> previous = connected.putIfAbsent(key, opening);
+        if (previous != null){
+            try {
+                previous.get();
+            } catch (ExecutionException e){
+                // The connection wasn't opened, this request opens another
+            }
+            return clients[clientIndex].send(request, HttpResponse.BodyHandlers.ofInputStream());
+        }
+        try {
+            HttpResponse<InputStream> response = clients[clientIndex].send(request, HttpResponse.BodyHandlers.ofInputStream());
+            opening.complete(null);
+            return response;
+        } catch (IOException | InterruptedException | RuntimeException e){
+            // The next request tries to open the connection again
+            connected.remove(key, opening);
+            opening.completeExceptionally(e);
+            throw e;
+        }
+    }
+
+    /**
+     * This class is the body of a response, which the watchdog closes when
+     * a read of it waits for too long. The time between two reads, e.g.
+     * while the RangeGetter waits for a buffer, doesn't count.
+     */
+    private class Body extends FilterInputStream {
+        private volatile long readStart = 0; // When the read in progress started, or 0
+        private volatile boolean timedOut = false;
+
+        Body(InputStream in){
+            super(in);
+        }
+
+        @Override
+        public int read() throws IOException {
+            readStart = System.nanoTime();
+            try {
+                return super.read();
+            } catch (IOException e){
+                throw timedOut ? new IOException("No data was received for " + TIME_TO_WAIT + " ms", e) : e;
+            } finally {
+                readStart = 0;
+            }
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            readStart = System.nanoTime();
+            try {
+                return super.read(b, off, len);
+            } catch (IOException e){
+                throw timedOut ? new IOException("No data was received for " + TIME_TO_WAIT + " ms", e) : e;
+            } finally {
+                readStart = 0;
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            openBodies.remove(this);
+            super.close();
+        }
+    }
+}
@@ -1,41 +1,80 @@
-import java.io.Serializable;
-
 /**
  * This class represents the metadata about the file that is being downloaded.
- * It contains all kinds of methods that operate on the metadata array
+ * It holds one bit per chunk, which is set once the chunk is written, and
+ * contains all kinds of methods that operate on it.
+ * Reading and marking a chunk are thread safe, since in transfer mode the
+ * RangeGetters mark the chunks they write.
  */
-public class Metadata implements Serializable {
+public class Metadata {
 
-    private boolean[] metaDataArray;
+    private ChunkBitSet downloadedChunks;
 
     public Metadata(int bitMapSize) {
-        this.metaDataArray = new boolean[bitMapSize];
+        this.downloadedChunks = new ChunkBitSet(bitMapSize);
+    }
+
+    public Metadata(ChunkBitSet downloadedChunks) {
+        this.downloadedChunks = downloadedChunks;
+    }
+
+    /**
+     * A getter method. This method returns whether the chunk indicated by
+     * index was downloaded
+     * @param index the index of the chunk
+     * @return true if the chunk was downloaded
+     */
+    public synchronized boolean get(int index){
+        return this.downloadedChunks.get(index);
+    }
+
+    /**
+     * A setter method. This method marks the chunk indicated by index as
+     * downloaded
+     * @param index the index of the chunk we wish to change.
+     * @return true if the chunk wasn't marked before
+     */
+    public synchronized boolean setIndexToTrue(int index) {
+        if (this.downloadedChunks.get(index)){
+            return false;
+        }
+        this.downloadedChunks.set(index);
+        return true;
+    }
+
+    /**
+     * This method finds the first chunk that hasn't been downloaded yet,
+     * starting from fromIndex.
+     * @param fromIndex the index to start from
+     * @return the index of the chunk, or -1 if all the chunks from fromIndex
+     * were downloaded
+     */
+    public int nextMissingIndex(int fromIndex){
+        return this.downloadedChunks.nextClearBit(fromIndex);
     }
 
     /**
-     * A getter method. This method returns an element from the array,
-     * indicated by index
-     * @param index the element we want to return from this index
-     * @return the element from the array
+     * This method finds the first chunk that was downloaded, starting from
+     * fromIndex.
+     * @param fromIndex the index to start from
+     * @return the index of the chunk, or -1 if none of the chunks from
+     * fromIndex were downloaded
      */
-    public boolean get(int index){
-        return this.metaDataArray[index];
+    public int nextDownloadedIndex(int fromIndex){
+        return this.downloadedChunks.nextSetBit(fromIndex);
     }
 
     /**
-     * A setter method. This method changes the value of an element in the array
-     * indicated by index
-     * @param index the index of the element we wish to change.
+     * @return the number of chunks that were downloaded
      */
-    public void setIndexToTrue(int index) {
-        this.metaDataArray[index] = true;
+    public int getNumOfDownloadedChunks(){
+        return this.downloadedChunks.cardinality();
     }
 
     /**
      * A getter method.
-     * @return the size of the array
+     * @return the number of chunks in the metadata
      */
     public int getMetadataSize() {
-        return this.metaDataArray.length;
+        return this.downloadedChunks.size();
     }
-}
\ No newline at end of file
+}
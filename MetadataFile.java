@@ -0,0 +1,174 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * This class keeps the metadata of the download on the disk, so that the
+ * download can be resumed. The bitmap of the downloaded chunks lives in a
+ * fixed size file that is mapped to memory, so resuming reads it as is.
+ * The chunks are marked in a copy of the bitmap on the heap, and are only
+ * copied to the mapped bitmap at a checkpoint, after the downloaded file was
+ * synced. Otherwise the OS could write a page of the mapped bitmap back at
+ * any time, before the chunks it marks, and a crash of the OS would leave
+ * the metadata claiming chunks that are not on the disk.
+ *
+ * The file starts with a small header that identifies it and the download
+ * it belongs to, followed by the words of the bitmap. Since version 2 the
+ * header also holds the size of the chunks, so a download is resumed with
+ * the chunk size it was started with. Files of version 1 always used chunks
+ * of 4096 bytes.
+ */
+public class MetadataFile {
+
+    private final static int MAGIC = 0x444D4246; // "DMBF"
+    private final static int VERSION = 2;
+    private final static int VERSION_1_CHUNK_SIZE = 4096;
+    private final static int HEADER_SIZE = 32; // Keeps the bitmap 8 bytes aligned
+
+    private Path metadataPath;
+    private FileChannel channel;
+    private MappedByteBuffer mappedFile;
+    private ChunkBitSet mappedBitmap; // The bitmap on the disk, as of the last checkpoint
+    private ChunkBitSet bitmap; // The bitmap the chunks are marked in
+    private boolean isOnResume = false;
+    private int chunkSize;
+
+    public MetadataFile(String fileName){
+        metadataPath = Paths.get("").resolve(fileName + ".tmp");
+    }
+
+    /**
+     * This method maps the metadata file to memory and returns the metadata
+     * that starts from it. If the file exists and belongs to the same
+     * download, we are on resume and the bitmap is used as is, with the
+     * chunk size of the previous run. Otherwise, the file is (re)created
+     * with an empty bitmap.
+     * @param fileSize the size of the downloaded file
+     * @param chunkSize the size of the chunks, if this is a new download
+     * @return the metadata object of this download
+     */
+    public Metadata open(long fileSize, int chunkSize){
+        int numOfChunks = 0;
+        try {
+            channel = FileChannel.open(metadataPath, StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            int previousChunkSize = readChunkSize(fileSize);
+            if (previousChunkSize > 0){
+                numOfChunks = numOfChunks(fileSize, previousChunkSize);
+                isOnResume = channel.size() == mappedSize(numOfChunks);
+                this.chunkSize = previousChunkSize;
+            }
+
+            if (!isOnResume){
+                // A file of another download, or of a run that stopped
+                // before writing anything, is started over
+                channel.truncate(0);
+                numOfChunks = numOfChunks(fileSize, chunkSize);
+                this.chunkSize = chunkSize;
+            }
+            mappedFile = channel.map(FileChannel.MapMode.READ_WRITE, 0, mappedSize(numOfChunks));
+
+            if (!isOnResume){
+                mappedFile.putInt(0, MAGIC);
+                mappedFile.putInt(4, VERSION);
+                mappedFile.putLong(8, fileSize);
+                mappedFile.putInt(16, numOfChunks);
+                mappedFile.putInt(20, chunkSize);
+                mappedFile.force();
+            }
+        } catch (IOException e){
+            System.err.println("Failed while opening the metadata file");
+            System.err.println("Download failed");
+            System.exit(1);
+        }
+
+        ByteBuffer words = mappedFile.duplicate().position(HEADER_SIZE).slice();
+        mappedBitmap = new ChunkBitSet(words.asLongBuffer(), numOfChunks);
+        bitmap = new ChunkBitSet(numOfChunks);
+        mappedBitmap.copyChangedWords(bitmap);
+        return new Metadata(bitmap);
+    }
+
+    /**
+     * Metadata size is the number of chunks we need for the file.
+     * Chunks are indexed by int.
+     * @return the number of chunks of the file
+     */
+    private static int numOfChunks(long fileSize, int chunkSize){
+        return Math.toIntExact((fileSize + chunkSize - 1) / chunkSize);
+    }
+
+    /**
+     * @return the size of the file with a bitmap of numOfChunks bits
+     */
+    private static long mappedSize(int numOfChunks){
+        return HEADER_SIZE + (long) ChunkBitSet.numOfWords(numOfChunks) * Long.BYTES;
+    }
+
+    /**
+     * This method checks that the header of an existing file belongs to
+     * this download, and reads the chunk size of the download from it.
+     * @return the chunk size, or 0 if the header doesn't match
+     */
+    private int readChunkSize(long fileSize) throws IOException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (header.hasRemaining()){
+            if (channel.read(header, header.position()) < 0){
+                return 0;
+            }
+        }
+        if (header.getInt(0) != MAGIC || header.getLong(8) != fileSize){
+            return 0;
+        }
+        int version = header.getInt(4);
+        int chunkSize = version == 1 ? VERSION_1_CHUNK_SIZE : version == VERSION ? header.getInt(20) : 0;
+        if (chunkSize <= 0 || header.getInt(16) != numOfChunks(fileSize, chunkSize)){
+            return 0;
+        }
+        return chunkSize;
+    }
+
+    /**
+     * @return the size of the chunks of this download
+     */
+    public int getChunkSize(){
+        return this.chunkSize;
+    }
+
+    /**
+     * @return true if the metadata was taken from a previous run
+     */
+    public boolean isOnResume(){
+        return this.isOnResume;
+    }
+
+    /**
+     * This method copies the chunks that were marked since the last call to
+     * the mapped bitmap, and writes it to the disk. Should be called once the
+     * marked chunks are on the disk, and while no chunk is being marked.
+     */
+    public void force(){
+        if (bitmap.copyChangedWords(mappedBitmap) > 0){
+            mappedFile.force();
+        }
+    }
+
+    /**
+     * This method removes the metadata file once the download is done.
+     * @return true if the file was deleted
+     */
+    public boolean delete(){
+        try {
+            channel.close();
+            Files.deleteIfExists(metadataPath);
+            return true;
+        } catch (IOException e){
+            return false;
+        }
+    }
+}
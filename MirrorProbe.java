@@ -0,0 +1,192 @@
+import java.io.IOException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * This class sends a HTTP HEAD request to all the mirrors at once, before the
+ * download starts. The mirrors are compared by their Content-Length, ETag and
+ * Last-Modified headers, and only the largest group of mirrors that agree
+ * with each other is used. ETag and Last-Modified are only compared when
+ * both mirrors send them. A mirror that doesn't answer is left out too, and
+ * so is a mirror that doesn't support ranges: when it doesn't advertise them
+ * (Accept-Ranges: bytes), its first byte is requested as a test, and the
+ * mirror is only used if it answers with that range (206 Partial Content).
+ * The connection of a mirror that answered is kept alive, so the first range
+ * requested from it doesn't have to connect again.
+ */
+public class MirrorProbe {
+
+    private final static int TIME_TO_WAIT = 2000; // Time to wait while opening connections
+    private final static int MAX_PARALLEL_PROBES = 16;
+
+    /**
+     * This class holds the answer of one mirror to the HEAD request.
+     */
+    public static class Result {
+        URL url;
+        long contentLength = -1;
+        String eTag;
+        String lastModified;
+        String acceptRanges;
+        long latencyMillis;
+        String failure;
+
+        /**
+         * @return true if this mirror serves the same file as other
+         */
+        boolean agreesWith(Result other){
+            return contentLength == other.contentLength
+                    && (eTag == null || other.eTag == null || eTag.equals(other.eTag))
+                    && (lastModified == null || other.lastModified == null || lastModified.equals(other.lastModified));
+        }
+
+        public long getContentLength(){
+            return contentLength;
+        }
+
+        public long getLatencyMillis(){
+            return latencyMillis;
+        }
+
+        public URL getURL(){
+            return url;
+        }
+    }
+
+    /**
+     * This method sends a HEAD request to one mirror.
+     * @param url the mirror
+     * @return the answer of the mirror
+     */
+    private static Result probe(URL url){
+        Result result = new Result();
+        result.url = url;
+        try {
+            HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+            connection.setRequestMethod("HEAD");
+            connection.setConnectTimeout(TIME_TO_WAIT); // Sets a 2 sec timeout when the connection is established
+            connection.setReadTimeout(TIME_TO_WAIT);
+
+            long startTime = System.nanoTime();
+            int responseCode = connection.getResponseCode();
+            result.latencyMillis = (System.nanoTime() - startTime) / 1000000;
+
+            result.contentLength = connection.getContentLengthLong();
+            result.eTag = connection.getHeaderField("ETag");
+            result.lastModified = connection.getHeaderField("Last-Modified");
+            result.acceptRanges = connection.getHeaderField("Accept-Ranges");
+
+            if (responseCode != HttpURLConnection.HTTP_OK){
+                connection.disconnect();
+                result.failure = "responded with " + responseCode;
+            } else if (result.contentLength < 0){
+                result.failure = "didn't send the file size";
+            } else if (!"bytes".equalsIgnoreCase(result.acceptRanges) && !supportsRanges(url)){
+                result.failure = "doesn't support ranges";
+            }
+        } catch (IOException e){
+            result.failure = "didn't respond";
+        }
+        return result;
+    }
+
+    /**
+     * This method requests the first byte of the file from a mirror that
+     * doesn't advertise ranges, to see if it sends only that byte.
+     * @param url the mirror
+     * @return true if the mirror answered with the range
+     */
+    private static boolean supportsRanges(URL url){
+        HttpURLConnection connection = null;
+        try {
+            connection = (HttpURLConnection) url.openConnection();
+            connection.setConnectTimeout(TIME_TO_WAIT);
+            connection.setReadTimeout(TIME_TO_WAIT);
+            connection.setRequestProperty("Range", "bytes=0-0");
+            RangeGetter.checkRange(connection.getResponseCode(), connection.getHeaderField("Content-Range"), 0, 0);
+            connection.getInputStream().readAllBytes();
+            connection.getInputStream().close();
+            return true;
+        } catch (IOException e){
+            // Don't read the rest of a whole file to keep the connection alive
+            if (connection != null){
+                connection.disconnect();
+            }
+            return false;
+        }
+    }
+
+    /**
+     * This method probes all the mirrors at once, and returns the ones that
+     * can be used for the download. The mirrors that were left out are
+     * printed with the reason.
+     * @param URLs the mirrors
+     * @return the answers of the mirrors to use, the first of them is the one
+     * the others agree with. The list is empty if no mirror can be used.
+     */
+    public static List<Result> probeAll(List<URL> URLs){
+        ExecutorService executor = Executors.newFixedThreadPool(Math.min(URLs.size(), MAX_PARALLEL_PROBES));
+        List<Future<Result>> futures = new ArrayList<Future<Result>>();
+        for (URL url : URLs){
+            Callable<Result> task = () -> probe(url);
+            futures.add(executor.submit(task));
+        }
+
+        List<Result> answered = new ArrayList<Result>();
+        try {
+            for (Future<Result> future : futures){
+                Result result = future.get();
+                if (result.failure == null){
+                    answered.add(result);
+                } else {
+                    System.err.println("Not using " + result.url + ": the server " + result.failure);
+                }
+            }
+        } catch (InterruptedException | ExecutionException e){
+            answered.clear();
+        } finally {
+            executor.shutdownNow();
+        }
+
+        // The reference is the mirror most of the others agree with. On a
+        // tie, the faster one
+        Result reference = null;
+        int referenceVotes = -1;
+        for (Result candidate : answered){
+            int votes = 0;
+            for (Result other : answered){
+                if (candidate.agreesWith(other)){
+                    votes++;
+                }
+            }
+            if (votes > referenceVotes || (votes == referenceVotes && candidate.latencyMillis < reference.latencyMillis)){
+                reference = candidate;
+                referenceVotes = votes;
+            }
+        }
+
+        List<Result> usable = new ArrayList<Result>();
+        if (reference == null){
+            return usable;
+        }
+        usable.add(reference);
+        for (Result result : answered){
+            if (result == reference){
+                continue;
+            }
+            if (reference.agreesWith(result)){
+                usable.add(result);
+            } else {
+                System.err.println("Not using " + result.url + ": the server has a different version of the file");
+            }
+        }
+        return usable;
+    }
+}
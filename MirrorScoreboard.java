@@ -0,0 +1,181 @@
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Random;
+
+/**
+ * This class keeps score of the mirrors. The RangeGetters report the time to
+ * the first byte of each request and the throughput of their reads, and the
+ * scoreboard keeps a moving average of both for every mirror. New segments
+ * are sent to a mirror at random, in proportion to its score, so faster
+ * mirrors get more of the file. A mirror whose throughput wasn't measured
+ * yet is scored by its time to the first byte - at first, the latency of
+ * the probe - compared to the mirror that answers first, so the first
+ * segments go to the responsive mirrors. A mirror that fails has its
+ * throughput cut in half, and since old measurements fade out, a mirror that
+ * slows down loses its share over time.
+ */
+public class MirrorScoreboard {
+
+    private final static double SMOOTHING = 0.2; // Weight of a new measurement in the average
+    private final static double SEGMENT_SIZE = 1024 * 1024; // Segment size the score is computed for
+    private final static double MIN_SHARE = 0.02; // Share every mirror keeps, so it can still be measured
+    private final static double LATENCY_NOISE_MILLIS = 20; // Latencies that differ by less are about the same
+
+    private ArrayList<URL> URLs;
+    private HashMap<String, Score> scores = new HashMap<String, Score>(); // URL.hashCode resolves the host
+    private Random r = new Random();
+
+    /**
+     * This class holds the measurements of one mirror.
+     */
+    private static class Score {
+        double firstByteMillis = -1;
+        double bytesPerSecond = -1;
+        int failures = 0;
+    }
+
+    public MirrorScoreboard(ArrayList<URL> URLs){
+        this.URLs = URLs;
+        for (URL url : URLs){
+            scores.put(url.toString(), new Score());
+        }
+    }
+
+    private static double average(double previous, double sample){
+        return previous < 0 ? sample : (1 - SMOOTHING) * previous + SMOOTHING * sample;
+    }
+
+    /**
+     * This method records the time it took a mirror to send the first byte
+     * of a response.
+     * @param url the mirror
+     * @param millis the time in milliseconds
+     */
+    public synchronized void recordFirstByte(URL url, long millis){
+        Score score = scores.get(url.toString());
+        score.firstByteMillis = average(score.firstByteMillis, millis);
+    }
+
+    /**
+     * This method records bytes that were read from a mirror.
+     * @param url the mirror
+     * @param bytes the number of bytes
+     * @param nanos the time it took to read them
+     */
+    public synchronized void recordThroughput(URL url, long bytes, long nanos){
+        if (nanos <= 0){
+            return;
+        }
+        Score score = scores.get(url.toString());
+        score.bytesPerSecond = average(score.bytesPerSecond, bytes * 1e9 / nanos);
+    }
+
+    /**
+     * This method records that a request to a mirror failed.
+     * @param url the mirror
+     */
+    public synchronized void recordFailure(URL url){
+        Score score = scores.get(url.toString());
+        score.failures++;
+        // A mirror that fails before it was measured isn't tried as if it
+        // was the best anymore
+        score.bytesPerSecond = Math.max(0, score.bytesPerSecond / 2);
+    }
+
+    /**
+     * This method computes the score of a mirror - the number of segments
+     * of SEGMENT_SIZE it is expected to deliver in a second.
+     * @return the score, or -1 if the throughput of the mirror wasn't
+     * measured yet
+     */
+    private double score(URL url){
+        Score score = scores.get(url.toString());
+        if (score.bytesPerSecond < 0){
+            return -1;
+        }
+        if (score.bytesPerSecond == 0){
+            return 0;
+        }
+        double firstByteSeconds = Math.max(0, score.firstByteMillis) / 1000;
+        return 1 / (firstByteSeconds + SEGMENT_SIZE / score.bytesPerSecond);
+    }
+
+    /**
+     * @return a mirror to send a new segment to
+     */
+    public synchronized URL pick(){
+        return pickOther(null);
+    }
+
+    /**
+     * This method picks a mirror at random, in proportion to the scores.
+     * @param url a mirror to avoid, or null
+     * @return a mirror other than url, or url if it is the only mirror
+     */
+    public synchronized URL pickOther(URL url){
+        if (URLs.size() == 1){
+            return URLs.get(0);
+        }
+        double[] weights = new double[URLs.size()];
+        double best = 0;
+        for (int i = 0; i < URLs.size(); i++){
+            weights[i] = score(URLs.get(i));
+            best = Math.max(best, weights[i]);
+        }
+        if (best == 0){
+            best = 1;
+        }
+        double fastestFirstByte = -1;
+        for (URL mirror : URLs){
+            double firstByteMillis = scores.get(mirror.toString()).firstByteMillis;
+            if (firstByteMillis >= 0 && (fastestFirstByte < 0 || firstByteMillis < fastestFirstByte)){
+                fastestFirstByte = firstByteMillis;
+            }
+        }
+
+        double total = 0;
+        for (int i = 0; i < URLs.size(); i++){
+            if (url != null && URLs.get(i).toString().equals(url.toString())){
+                weights[i] = 0;
+                continue;
+            }
+            if (weights[i] < 0){
+                // Not measured yet - as good as the best mirror, if it
+                // answers as fast as the fastest one
+                double firstByteMillis = scores.get(URLs.get(i).toString()).firstByteMillis;
+                weights[i] = firstByteMillis < 0 ? best
+                        : best * (fastestFirstByte + LATENCY_NOISE_MILLIS) / (firstByteMillis + LATENCY_NOISE_MILLIS);
+            }
+            weights[i] = Math.max(weights[i], best * MIN_SHARE);
+            total += weights[i];
+        }
+
+        double point = r.nextDouble() * total;
+        URL picked = null;
+        for (int i = 0; i < URLs.size(); i++){
+            if (weights[i] > 0){
+                picked = URLs.get(i);
+                point -= weights[i];
+                if (point <= 0){
+                    break;
+                }
+            }
+        }
+        return picked;
+    }
+
+    /**
+     * This method prints the measurements of every mirror.
+     */
+    public synchronized void printSummary(){
+        for (URL url : URLs){
+            Score score = scores.get(url.toString());
+            if (score.bytesPerSecond < 0){
+                continue;
+            }
+            System.out.println(url + ": " + String.format("%.1f", score.bytesPerSecond / (1024 * 1024)) + " MB/s, first byte after " +
+                    Math.round(score.firstByteMillis) + " ms, " + score.failures + " failures");
+        }
+    }
+}
@@ -0,0 +1,70 @@
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * This class keeps statistics of the queue between the RangeGetters and the
+ * Writer. The queue and the buffer pool are bounded, so when the disk is
+ * slower than the network the RangeGetters wait for the Writer, and when the
+ * network is slower the Writer waits for chunks. The time each side spent
+ * waiting, and how full the queue was, tell which of the two is the
+ * bottleneck.
+ */
+public class QueueStats {
+
+    private final AtomicLong getterBlockedNanos = new AtomicLong();
+    private final AtomicLong writerBlockedNanos = new AtomicLong();
+    private final AtomicLong depthSum = new AtomicLong();
+    private final AtomicLong depthSamples = new AtomicLong();
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final AtomicLong writes = new AtomicLong();
+    private final AtomicLong bytesWritten = new AtomicLong();
+
+    /**
+     * This method records time a RangeGetter spent waiting for a free
+     * buffer or for room in the queue.
+     * @param nanos the time in nanoseconds
+     */
+    public void recordGetterBlocked(long nanos){
+        getterBlockedNanos.addAndGet(nanos);
+    }
+
+    /**
+     * This method records time the Writer spent waiting for a chunk.
+     * @param nanos the time in nanoseconds
+     */
+    public void recordWriterBlocked(long nanos){
+        writerBlockedNanos.addAndGet(nanos);
+    }
+
+    /**
+     * This method records the number of chunks in the queue.
+     * @param depth the number of chunks
+     */
+    public void recordDepth(int depth){
+        depthSum.addAndGet(depth);
+        depthSamples.incrementAndGet();
+        maxDepth.accumulateAndGet(depth, Math::max);
+    }
+
+    /**
+     * This method records a write of the Writer to the file.
+     * @param bytes the number of bytes written
+     */
+    public void recordWrite(long bytes){
+        writes.incrementAndGet();
+        bytesWritten.addAndGet(bytes);
+    }
+
+    /**
+     * This method prints the statistics.
+     * @param capacity the number of chunks the queue can hold
+     */
+    public void printSummary(int capacity){
+        long samples = Math.max(1, depthSamples.get());
+        System.out.println("Queue: " + String.format("%.1f", (double) depthSum.get() / samples) +
+                " chunks on average, at most " + maxDepth.get() + " of " + capacity +
+                ", RangeGetters waited " + String.format("%.1f", getterBlockedNanos.get() / 1e9) +
+                " s, Writer waited " + String.format("%.1f", writerBlockedNanos.get() / 1e9) + " s, " +
+                writes.get() + " writes of " + bytesWritten.get() / Math.max(1, writes.get()) / 1024 + " KB on average");
+    }
+}
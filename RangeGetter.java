@@ -1,180 +1,262 @@
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import javax.net.ssl.SSLException;
 import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Callable;
 
 /**
- * This class represents a RangeGetter worker. Each opens a connection with the
- * url and gets the required range we define ahead. It reads the range,
- * divide it to chunks and pushes those chunks to the queue.
+ * This class represents a RangeGetter worker. It asks the SegmentScheduler
+ * for a segment, opens a connection with the segment's url and gets its
+ * range. It reads the range, divide it to chunks and pushes those chunks to
+ * the queue, or in transfer and mmap modes writes them to the file itself
+ * through the Writer. Once the segment is done, it asks for the next one, until there
+ * is nothing left to download.
+ * If a segment fails, it is given back to the scheduler, which retries it
+ * later from the last chunk that was put in the queue. A range that failed
+ * too many times fails the RangeGetter, and with it the RangeGetterScope it
+ * runs in.
+ * The time to the first byte and the throughput of the reads are reported to
+ * the MirrorScoreboard.
+ * The ranges are requested with an HttpURLConnection each, or with the
+ * Http2Engine if one is given. Once a range was read, its response is closed
+ * rather than disconnected, so the connection is kept alive and the next
+ * range from the same mirror is requested on it. A connection is only
+ * dropped when its range failed, or was cancelled in the middle.
  */
-public class RangeGetter implements Runnable {
+public class RangeGetter implements Callable<Void> {
 
-    private static final int CHUNK_SIZE  = 4096; // Size of chunk to download
     private final static int TIME_TO_WAIT = 10000; // Time to wait while opening connections
-    private long startByte;
-    private long endByte;
-    private long mDownloaded = 0;
-    private long bytesToDownload;
-    private URL mURL;
-    private Metadata metaData;
+    private final static int THROUGHPUT_SAMPLE = 1024 * 1024; // Bytes read between two throughput reports
+    private final static long THROUGHPUT_SAMPLE_NANOS = 250000000; // Or time spent reading between two reports
+    private SegmentScheduler scheduler;
+    private MirrorScoreboard scoreboard;
     private BlockingDeque<Chunk> queue;
+    private ChunkBufferPool bufferPool;
+    private QueueStats queueStats;
+    private Writer writer;
+    private Http2Engine http2Engine;
+    private ConnectionStats connectionStats;
 
 
-    public RangeGetter(long startByte, long endByte, BlockingDeque<Chunk> queue,
-                       URL url, Metadata metaData){
-        this.startByte = startByte;
-        this.endByte = endByte;
+    public RangeGetter(SegmentScheduler scheduler, MirrorScoreboard scoreboard, Http2Engine http2Engine,
+                       ConnectionStats connectionStats, Writer writer,
+                       BlockingDeque<Chunk> queue, ChunkBufferPool bufferPool, QueueStats queueStats){
+        this.scheduler = scheduler;
+        this.scoreboard = scoreboard;
+        this.http2Engine = http2Engine;
+        this.connectionStats = connectionStats;
+        this.writer = writer;
         this.queue = queue;
-        this.mURL = url;
-        this.metaData = metaData;
+        this.bufferPool = bufferPool;
+        this.queueStats = queueStats;
     }
 
     /**
-     * This method goes over the chunks of this RangeGetter in the metadata
-     * array and returns the index of the first chunk that hasn't been
-     * downloaded yet.
-     * @param metadata the metadata object of this download
-     * @return the index of the first chunk in the metadata of this range
-     * that has not been downloaded yet
+     * RangeGetter thread - downloads segments as long as the scheduler has
+     * segments to give.
+     * @throws IOException if a range failed more times than the scheduler
+     * allows
+     * @throws InterruptedException if interrupted while putting a chunk in
+     * the queue
      */
-    private int startIndexOnResume(Metadata metadata){
-        for (int i = (int)this.startByte; i < this.endByte + 1; i += CHUNK_SIZE){
-            int index = i/CHUNK_SIZE;
-            if (!metadata.get(index)) return index;
-        }
-        // If we reached here, then all of this range has been downloaded,
-        // therefore return -1 to indicate this
-        return -1;
-    }
-
-    private Chunk readChunkAndPutInQueue(byte[] chunkData, int bytesToRead,
-                                     int offset, InputStream inputStream,
-                                        BlockingDeque<Chunk> queue) throws IOException, InterruptedException {
-        chunkData = new byte[bytesToRead];
-        inputStream.read(chunkData, 0, bytesToRead);
-        Chunk chunk = new Chunk(chunkData, offset);
-        queue.put(chunk);
-        return chunk;
+    @Override
+    public Void call() throws IOException, InterruptedException {
+        Thread thread = Thread.currentThread();
+        Segment segment;
 
+        while ((segment = this.scheduler.next()) != null){
+            String action = segment.getTwin() == null ? "Start downloading" : "Hedging";
+            System.out.println("[" + thread.getId() + "] " + action + " range (" +
+                    segment.getStart() + " - " + segment.getEnd() + ") from: " + segment.getURL().toString());
+            try {
+                download(segment);
+            } catch (IOException e){
+                // If the twin of this segment finished first, its
+                // connection was closed on purpose
+                if (!segment.isCancelled()){
+                    reportFailure(thread, segment, e);
+                }
+                if (!this.scheduler.retry(segment)){
+                    throw new IOException("Range (" + segment.getStart() + " - " + segment.getEnd() +
+                            ") failed too many times", e);
+                }
+            }
+        }
+        System.out.println("[" + thread.getId() + "] Finished downloading");
+        return null;
     }
 
     /**
-     * RangeGetter thread - first checks if we are on resume or if this is a
-     * regular download. Operates the download method according to the mode
+     * This method prints why a segment failed.
      */
-    @Override
-    public void run() {
-        Thread thread = Thread.currentThread();
-
-        // Checks if the program is on resume mode, or if this is a new download
-        if (this.metaData == null){
-            System.out.println("[" + thread.getId() + "] Start downloading range (" +
-                    this.startByte + " - " + this.endByte + ") from: " + this.mURL.toString());
-            download();
+    private void reportFailure(Thread thread, Segment segment, IOException e){
+        if (e instanceof SSLException || e instanceof SocketTimeoutException || e instanceof ConnectException){
+            System.err.println("[" + thread.getId() + "] Internet connection lost with: " + segment.getURL() + ", retrying");
         } else {
-            int startIndexOnResume = startIndexOnResume(this.metaData);
-            if (startIndexOnResume != -1) {
-                this.startByte = startIndexOnResume(this.metaData) * CHUNK_SIZE;
-                System.out.println("[" + thread.getId() + "] Start downloading range " +
-                        "(" + this.startByte + " - " + this.endByte + ") from: " + this.mURL.toString());
-                download();
-            }
+            System.err.println("[" + thread.getId() + "] A trouble occurred while trying to read range: " +
+                    segment.getStart() + "-" + segment.getEnd() + " from: " + segment.getURL() + ", retrying");
         }
-        System.out.println("[" + thread.getId() + "] Finished downloading");
     }
 
     /**
-     * This method implements the downloading methodology.
+     * This method implements the downloading methodology. It reads chunks
+     * until the scheduler says the segment is done - either because it was
+     * all downloaded, or because the rest of it was stolen by another
+     * RangeGetter.
+     * @param segment the segment to download
+     * @throws IOException if the range couldn't be read
+     * @throws InterruptedException if interrupted while putting a chunk in
+     * the queue, or while waiting for the response
      */
-    public void download(){
-        this.bytesToDownload = this.endByte - this.startByte + 1;
-        HttpURLConnection httpUrlConnection;
-        InputStream inputStream;
+    public void download(Segment segment) throws IOException, InterruptedException {
+        long startByte = segment.getStart();
+        long endByte = segment.getEnd();
+        URL url = segment.getURL();
+        if (endByte < startByte){
+            // The segment was cancelled before it was requested, since its
+            // twin finished first
+            this.scheduler.nextChunkSize(segment);
+            return;
+        }
+
+        // Only the time spent reading is measured, not the time spent
+        // waiting for the writer
+        long requestTime = System.nanoTime();
+        long readNanos = 0;
+        long bytesRead = 0;
+        Closeable connection = null;
+        boolean completed = false;
+
         try {
-            try {
-                httpUrlConnection = (HttpURLConnection) this.mURL.openConnection();
+            InputStream inputStream;
+            if (this.http2Engine != null){
+                inputStream = this.http2Engine.openRange(url, startByte, endByte);
+                connection = inputStream;
+            } else {
+                HttpURLConnection httpUrlConnection = (HttpURLConnection) url.openConnection();
                 // Sets a timeout to a disconnection for 10 seconds
                 httpUrlConnection.setConnectTimeout(TIME_TO_WAIT);
                 httpUrlConnection.setReadTimeout(TIME_TO_WAIT);
                 // Request the needed range
-                httpUrlConnection.setRequestProperty("Range", "bytes=" + this.startByte + "-" + this.endByte);
-            } catch (IOException e){
-                System.err.println("Failed while opening a range connection with: " + this.mURL);
-                System.err.println("Download failed");
-                return;
+                httpUrlConnection.setRequestProperty("Range", "bytes=" + startByte + "-" + endByte);
+                connection = httpUrlConnection::disconnect;
+                inputStream = httpUrlConnection.getInputStream();
+                checkRange(httpUrlConnection.getResponseCode(), httpUrlConnection.getHeaderField("Content-Range"),
+                        startByte, endByte);
             }
+            this.connectionStats.recordRequest();
+            // The headers of the response are in, the body follows
+            this.scoreboard.recordFirstByte(url, (System.nanoTime() - requestTime) / 1000000);
+            // The response is read through a channel straight into the
+            // direct buffers of the pool
+            ReadableByteChannel inputChannel = Channels.newChannel(inputStream);
+            // Closing the connection from another thread is only safe once
+            // it is established
+            segment.setConnection(connection);
 
-            inputStream = httpUrlConnection.getInputStream();
+            long offset = startByte;
+            int bytesToRead;
 
-            byte[] chunkData = new byte[CHUNK_SIZE];
-            int offset = (int) this.startByte;
-
-            // If the range we got is less than CHUNK_SIZE, then we should
-            // download a chunk that is less than CHUNK_SIZE
-            if (this.bytesToDownload < CHUNK_SIZE){
-                int index = offset/CHUNK_SIZE;
-
-                // If we are in resume mode and we have'nt downloaded this
-                // chunk yet, or if we are not in resume mode, then we need to
-                // download one chunk
-                if (this.metaData == null || !this.metaData.get(index)){
-                    Chunk chunk = this.readChunkAndPutInQueue(chunkData, (int) bytesToDownload, offset, inputStream, this.queue);
-                    offset += chunk.getSize();
-                    this.mDownloaded += chunk.getSize();
-                }
-
-            // If we have more bytes to download than CHUNK_SIZE
-            } else {
-                while ((inputStream.read(chunkData, 0, CHUNK_SIZE)) > 0) {
-                    int index = offset/CHUNK_SIZE;
-                    // If we are on resume, and we already downloaded this
-                    // chunk, we can skip this chunk
-                    if (this.metaData != null && this.metaData.get(index)){
-                        offset += CHUNK_SIZE;
-                        this.mDownloaded += CHUNK_SIZE;
-                        chunkData = new byte[CHUNK_SIZE];
-                        continue;
-                    }
-                    // If we haven't downloaded this chunk so far
-                    Chunk chunk = new Chunk(chunkData, offset);
-                    this.queue.put(chunk);
-                    offset += chunk.getSize();
-                    this.mDownloaded += chunk.getSize();
-                    chunkData = new byte[CHUNK_SIZE];
-
-                    if (this.bytesToDownload - this.mDownloaded < CHUNK_SIZE){
-                        break;
+            // The last chunk of the file may be less than the chunk size, the
+            // scheduler tells us how much to read
+            while ((bytesToRead = this.scheduler.nextChunkSize(segment)) > 0){
+                ByteBuffer chunkData = null;
+                long readStart;
+                if (this.writer.isDirectMode()){
+                    // The chunk goes from the connection to the file,
+                    // without the queue
+                    readStart = System.nanoTime();
+                    this.writer.transferChunk(inputChannel, offset, bytesToRead);
+                } else {
+                    // The buffer goes back to the pool once the Writer wrote it
+                    long waitStart = System.nanoTime();
+                    chunkData = this.bufferPool.take();
+                    this.queueStats.recordGetterBlocked(System.nanoTime() - waitStart);
+                    readStart = System.nanoTime();
+                    try {
+                        chunkData.limit(bytesToRead);
+                        readFully(inputChannel, chunkData, offset);
+                    } catch (IOException e){
+                        this.bufferPool.release(chunkData);
+                        throw e;
                     }
                 }
+                readNanos += System.nanoTime() - readStart;
+                bytesRead += bytesToRead;
+                if (bytesRead >= THROUGHPUT_SAMPLE || readNanos >= THROUGHPUT_SAMPLE_NANOS){
+                    this.scoreboard.recordThroughput(url, bytesRead, readNanos);
+                    bytesRead = 0;
+                    readNanos = 0;
+                }
 
-                // If we reached here, so there is a possibility that we
-                // finished downloading our range, or that we have some bytes
-                // left to downloaded, but they are less than CHUNK_SIZE
-                if (this.bytesToDownload - this.mDownloaded > 0) {
-                    int index = offset/CHUNK_SIZE;
-                    if (this.metaData == null || !metaData.get(index)) {
-                        int leftToRead = (int)this.bytesToDownload - (int) this.mDownloaded;
-                        this.readChunkAndPutInQueue(chunkData, leftToRead, offset, inputStream, this.queue);
-                    }
+                if (chunkData != null){
+                    long waitStart = System.nanoTime();
+                    chunkData.flip();
+                    this.queue.put(new Chunk(chunkData, offset));
+                    this.queueStats.recordGetterBlocked(System.nanoTime() - waitStart);
                 }
+                offset += bytesToRead;
+                this.scheduler.chunkDone(segment, bytesToRead);
             }
 
-            inputStream.close();
-            httpUrlConnection.disconnect();
-
-        } catch (InterruptedException e) {
-            System.err.println("Failed while putting a chunk inputStream the queue");
-            System.err.println("Download failed");
-            System.exit(1);
-        } catch (SSLException | SocketTimeoutException | ConnectException e){
-            System.err.println("Internet connection lost");
-            System.err.println("Download failed");
-            System.exit(1);
-        } catch (IOException e){
-            System.err.println("A trouble occurred while trying to read range: " + this.startByte + "-" + this.endByte + " from: " + this.mURL);
-            System.err.println("Download failed");
-            System.exit(1);
+            // Closing the response without disconnecting gives the
+            // connection back to be reused. A cancelled segment is left to
+            // the finally block, as its connection may be already closed
+            segment.setConnection(null);
+            if (!segment.isCancelled()){
+                inputChannel.close();
+                completed = true;
+            }
+        } finally {
+            if (connection != null && !completed){
+                connection.close();
+            }
+            if (bytesRead > 0){
+                this.scoreboard.recordThroughput(url, bytesRead, readNanos);
+            }
+        }
+    }
+
+    /**
+     * This method checks that the response to a range request holds the
+     * range that was asked for. A server that ignores the Range header sends
+     * the whole file instead (200 OK), which must not be written at the
+     * offset of the range.
+     * @param responseCode the status code of the response
+     * @param contentRange the Content-Range header of the response
+     * @param startByte the first byte that was asked for
+     * @param endByte the last byte that was asked for (inclusive)
+     * @throws IOException if the response doesn't hold the range
+     */
+    static void checkRange(int responseCode, String contentRange, long startByte, long endByte) throws IOException {
+        if (responseCode != HttpURLConnection.HTTP_PARTIAL){
+            throw new IOException("The server responded with " + responseCode + " to a range request");
+        }
+        String expected = "bytes " + startByte + "-" + endByte + "/";
+        if (contentRange == null || !contentRange.trim().startsWith(expected)){
+            throw new IOException("The server sent range " + contentRange + " instead of " + startByte + "-" + endByte);
+        }
+    }
+
+    /**
+     * This method reads from the connection until the buffer is full. A
+     * read returns what has arrived on the socket so far, which is often
+     * less than a chunk, so a single read may leave the rest of the chunk
+     * empty.
+     * @param channel the channel of the connection
+     * @param buffer the buffer to fill, up to its limit
+     * @param offset the offset in the file of the start of the buffer
+     * @throws IOException if the connection was closed before the buffer
+     * was full, or the read failed
+     */
+    private static void readFully(ReadableByteChannel channel, ByteBuffer buffer, long offset) throws IOException {
+        while (buffer.hasRemaining()){
+            if (channel.read(buffer) < 0){
+                throw new EOFException("Connection closed at byte " + (offset + buffer.position()));
+            }
         }
     }
 }
@@ -0,0 +1,120 @@
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * This class runs the RangeGetters of a download, each in its own thread, as
+ * one task - in the manner of a structured concurrency scope. The first
+ * RangeGetter that fails shuts the scope down, which aborts the scheduler:
+ * the other RangeGetters stop at their next chunk, instead of the process
+ * exiting under them. The download then waits for all of them with
+ * join(millis), and handles the failure in one place.
+ * The threads are platform threads, or virtual threads if asked for and the
+ * JVM has them (Java 21 and up). A virtual thread is cheap while it is
+ * blocked on its connection or on the queue, so hundreds of connections
+ * don't need hundreds of platform threads. Virtual threads are created by
+ * reflection, so older JVMs fall back to platform threads.
+ */
+public class RangeGetterScope {
+
+    public final static String PLATFORM_THREADS = "platform";
+    public final static String VIRTUAL_THREADS = "virtual";
+
+    private ArrayList<Thread> threads = new ArrayList<Thread>();
+    private AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+    private Runnable onShutdown;
+    private Object virtualBuilder; // A Thread.Builder of virtual threads, or null
+    private Method unstarted;
+
+    /**
+     * @param virtualThreads true to run the RangeGetters in virtual threads
+     * @param onShutdown run once, by the first RangeGetter that fails
+     */
+    public RangeGetterScope(boolean virtualThreads, Runnable onShutdown){
+        this.onShutdown = onShutdown;
+        if (virtualThreads){
+            try {
+                this.virtualBuilder = Thread.class.getMethod("ofVirtual").invoke(null);
+                this.unstarted = Class.forName("java.lang.Thread$Builder").getMethod("unstarted", Runnable.class);
+            } catch (ReflectiveOperationException e){
+                // Before Java 21, or Java 19 and 20 without --enable-preview
+                this.virtualBuilder = null;
+                System.err.println("Virtual threads are not supported by this JVM, using platform threads");
+            }
+        }
+    }
+
+    /**
+     * This method starts a task in a new thread of the scope. If the task
+     * throws, the scope is shut down.
+     * @param task the task
+     */
+    public void fork(Callable<?> task){
+        Runnable body = () -> {
+            try {
+                task.call();
+            } catch (Throwable e){
+                fail(e);
+            }
+        };
+        Thread thread = newThread(body);
+        threads.add(thread);
+        thread.start();
+    }
+
+    private Thread newThread(Runnable body){
+        if (virtualBuilder != null){
+            try {
+                return (Thread) unstarted.invoke(virtualBuilder, body);
+            } catch (IllegalAccessException | InvocationTargetException e){
+                // Not expected once the builder was created
+            }
+        }
+        // Like virtual threads, the platform threads don't keep the JVM
+        // alive, e.g. while stuck on the connection of a cancelled segment
+        Thread thread = new Thread(body);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    /**
+     * This method shuts the scope down, if it wasn't already.
+     * @param cause why the scope is shut down
+     */
+    public void fail(Throwable cause){
+        if (failure.compareAndSet(null, cause)){
+            onShutdown.run();
+        }
+    }
+
+    /**
+     * This method waits for all the threads of the scope to finish, for at
+     * most the given time.
+     * @param millis the time to wait
+     * @return true if all the threads finished
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public boolean join(long millis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + millis;
+        for (Thread thread : threads){
+            long left = deadline - System.currentTimeMillis();
+            if (left <= 0){
+                return threads.stream().noneMatch(Thread::isAlive);
+            }
+            thread.join(left);
+            if (thread.isAlive()){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return what made the first task fail, or null if none failed
+     */
+    public Throwable getFailure(){
+        return failure.get();
+    }
+}
@@ -0,0 +1,172 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * This class represents a segment of the file - a range of bytes that one
+ * RangeGetter downloads from one mirror. The start of the segment moves
+ * forward as its chunks are downloaded, and its end can move backwards when
+ * another RangeGetter steals the tail of it. Both are only changed by the
+ * SegmentScheduler.
+ * At the end of the download a segment may be hedged - downloaded again from
+ * another mirror by a second segment, its twin. The first of the two to
+ * finish cancels the other.
+ */
+public class Segment {
+
+    private volatile long start;
+    private volatile long end;
+    private URL url;
+    private long startTime;
+    private long bytesDone = 0;
+    private Segment twin;
+    private int attempts = 0;
+    private long notBefore = 0;
+    private volatile boolean cancelled = false;
+    private volatile Closeable connection;
+
+    public Segment(long start, long end, URL url) {
+        this.start = start;
+        this.end = end;
+        this.url = url;
+        this.startTime = System.currentTimeMillis();
+    }
+
+    /**
+     * This method starts measuring the throughput of the segment from now,
+     * when it is given out. The time it waited to be given out, e.g. for its
+     * backoff, doesn't count.
+     */
+    void started() {
+        this.startTime = System.currentTimeMillis();
+        this.bytesDone = 0;
+    }
+
+    /**
+     * @return the first byte of the segment that wasn't downloaded yet
+     */
+    public long getStart() {
+        return start;
+    }
+
+    /**
+     * @return the last byte of the segment (inclusive)
+     */
+    public long getEnd() {
+        return end;
+    }
+
+    /**
+     * @return the number of bytes left to download in this segment
+     */
+    public long getRemaining() {
+        return end - start + 1;
+    }
+
+    public URL getURL() {
+        return url;
+    }
+
+    /**
+     * @return the number of bytes per second downloaded in this segment
+     * since it was given out
+     */
+    public double getThroughput() {
+        long elapsed = Math.max(1, System.currentTimeMillis() - startTime);
+        return bytesDone * 1000.0 / elapsed;
+    }
+
+    /**
+     * @return the segment that downloads the same range from another mirror,
+     * or null if this segment isn't hedged
+     */
+    public Segment getTwin() {
+        return twin;
+    }
+
+    /**
+     * @return true if the twin of this segment finished first
+     */
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * This method keeps the connection this segment is downloaded with, so
+     * it can be closed if the segment is cancelled.
+     * @param connection closes the connection of the range request, or null
+     * once the range was read and the connection shouldn't be closed anymore
+     */
+    public void setConnection(Closeable connection) {
+        this.connection = connection;
+        if (cancelled && connection != null){
+            close(connection);
+        }
+    }
+
+    private static void close(Closeable connection) {
+        try {
+            connection.close();
+        } catch (IOException e){
+            // The RangeGetter fails on its next read either way
+        }
+    }
+
+    /**
+     * This method cancels the segment. Its RangeGetter stops at the next
+     * chunk. It is called while holding the scheduler's lock, so the
+     * connection is closed by a thread of its own: closing an
+     * HttpURLConnection waits for a read that is stuck on it, until the read
+     * times out. Nothing waits for that thread.
+     */
+    void cancel() {
+        this.cancelled = true;
+        this.end = this.start - 1;
+        Closeable connection = this.connection;
+        if (connection != null){
+            Thread closer = new Thread(() -> close(connection));
+            closer.setDaemon(true);
+            closer.start();
+        }
+    }
+
+    void setURL(URL url) {
+        this.url = url;
+    }
+
+    void setStart(long start) {
+        this.bytesDone += start - this.start;
+        this.start = start;
+    }
+
+    void setEnd(long end) {
+        this.end = end;
+    }
+
+    void setTwin(Segment twin) {
+        this.twin = twin;
+    }
+
+    /**
+     * @return the number of times this range failed so far
+     */
+    int getAttempts() {
+        return attempts;
+    }
+
+    void setAttempts(int attempts) {
+        this.attempts = attempts;
+    }
+
+    /**
+     * @return the time (in milliseconds) before which this segment shouldn't
+     * be downloaded, or if it is in flight, hedged
+     */
+    long getNotBefore() {
+        return notBefore;
+    }
+
+    void setNotBefore(long notBefore) {
+        this.notBefore = notBefore;
+    }
+}
@@ -0,0 +1,419 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * This class hands out the segments of the file to the RangeGetters.
+ * At first the chunks that are missing are divided into one segment per
+ * connection. A RangeGetter that finishes its segment asks for the next one,
+ * and when there are no segments left, it steals the second half of the
+ * largest segment that is still being downloaded. This way all the
+ * connections keep working until the very last bytes, instead of waiting for
+ * the slowest one. The mirror of a segment is chosen by the
+ * MirrorScoreboard when the segment is given out.
+ * When the segments left are too small to split, an idle RangeGetter hedges
+ * the slowest of them instead: it downloads the same range again, from
+ * another mirror if there is one, and whichever finishes first cancels the
+ * other.
+ * A segment that fails is put back from its last downloaded chunk, on
+ * another mirror, and is given out again after an exponential backoff. Each
+ * range may fail up to dm.retries times (5 by default). Once a range failed
+ * more than that, the download is aborted: no more segments are given out,
+ * and the segments in flight are cancelled.
+ * The number of segments in flight may be limited, e.g. by a
+ * ConnectionController. The RangeGetters above the limit wait. When the limit
+ * is lowered, the segments in flight above it end at their current chunk, and
+ * the rest of their ranges are put back to be given out again.
+ */
+public class SegmentScheduler {
+
+    private final static int MIN_STEAL_CHUNKS = 16; // A smaller half is not worth a new connection
+    private final static long BASE_BACKOFF = 500; // Backoff after the first failure of a range
+    private final static long MAX_BACKOFF = 30000; // Maximal backoff between two attempts
+    private final static int MAX_RETRIES = Integer.getInteger("dm.retries", 5);
+
+    private ArrayDeque<Segment> pending = new ArrayDeque<Segment>();
+    private ArrayList<Segment> inFlight = new ArrayList<Segment>();
+    private MirrorScoreboard scoreboard;
+    private int chunkSize;
+    private boolean aborted = false;
+    private int limit = Integer.MAX_VALUE;
+    private long bytesDone = 0;
+    private long failures = 0;
+
+    // Guards the segments. It is a lock rather than a monitor, since a
+    // virtual thread that waits on a monitor holds on to its carrier thread,
+    // and hundreds of idle RangeGetters would hold them all
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+
+    public SegmentScheduler(MirrorScoreboard scoreboard, Metadata metadata, long fileSize, int chunkSize,
+                            int numOfConnections){
+        this.scoreboard = scoreboard;
+        this.chunkSize = chunkSize;
+
+        int numOfChunks = metadata.getMetadataSize();
+        int missingChunks = numOfChunks - metadata.getNumOfDownloadedChunks();
+        int chunksPerSegment = Math.max(1, (missingChunks + numOfConnections - 1) / numOfConnections);
+
+        // Goes over the runs of missing chunks, and cuts each run to
+        // segments of at most chunksPerSegment chunks
+        int runStart = metadata.nextMissingIndex(0);
+        while (runStart != -1){
+            int runEnd = metadata.nextDownloadedIndex(runStart);
+            if (runEnd == -1){
+                runEnd = numOfChunks;
+            }
+            for (int i = runStart; i < runEnd; i += chunksPerSegment){
+                long start = (long) i * chunkSize;
+                long end = Math.min((long) Math.min(i + chunksPerSegment, runEnd) * chunkSize, fileSize) - 1;
+                pending.add(new Segment(start, end, null));
+            }
+            runStart = metadata.nextMissingIndex(runEnd);
+        }
+    }
+
+    /**
+     * This method gives a RangeGetter the next segment to download. If there
+     * are no segments left, it splits the largest segment in flight, and if
+     * none is large enough, it hedges the slowest one. If there is nothing to
+     * give right now but some segments may still fail and come back, it
+     * waits.
+     * @return the segment, or null if there is nothing left to download, or
+     * the download was aborted
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Segment next() throws InterruptedException {
+        lock.lock();
+        try {
+            while (true){
+                if (aborted){
+                    return null;
+                }
+                Segment segment = take();
+                if (segment != null){
+                    return segment;
+                }
+                if (pending.isEmpty() && inFlight.isEmpty()){
+                    return null;
+                }
+                // Above the limit, only a segment that is done helps
+                long wait = inFlight.size() >= limit ? 0 : millisUntilReady();
+                if (wait == 0){
+                    changed.await();
+                } else {
+                    changed.await(wait, TimeUnit.MILLISECONDS);
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This method is the same as next, except that it doesn't wait. It is
+     * used by the event loops of the SelectorEngine, which can't block.
+     * @return the segment, or null if there is nothing to give right now
+     */
+    public Segment poll(){
+        lock.lock();
+        try {
+            return aborted ? null : take();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return true if there is nothing left to download, or the download was
+     * aborted
+     */
+    public boolean isFinished(){
+        lock.lock();
+        try {
+            return aborted || (pending.isEmpty() && inFlight.isEmpty());
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This method takes a pending segment, or else steals or hedges one, and
+     * puts it in flight. Should be called while holding the lock.
+     * @return the segment, or null if there is nothing to give right now, or
+     * the limit of segments in flight was reached
+     */
+    private Segment take(){
+        if (inFlight.size() >= limit){
+            return null;
+        }
+        Segment segment = pollReady();
+        if (segment == null){
+            segment = steal();
+        }
+        if (segment == null){
+            segment = hedge();
+        }
+        if (segment != null){
+            if (segment.getURL() == null){
+                segment.setURL(scoreboard.pick());
+            }
+            segment.started();
+            inFlight.add(segment);
+        }
+        return segment;
+    }
+
+    /**
+     * @return the first pending segment that is done with its backoff, or
+     * null if there is no such segment
+     */
+    private Segment pollReady(){
+        long now = System.currentTimeMillis();
+        Iterator<Segment> iterator = pending.iterator();
+        while (iterator.hasNext()){
+            Segment segment = iterator.next();
+            if (segment.getNotBefore() <= now){
+                iterator.remove();
+                return segment;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @return the time until the first pending segment is done with its
+     * backoff, or 0 (wait until notified) if there are no pending segments
+     */
+    private long millisUntilReady(){
+        long now = System.currentTimeMillis();
+        long wait = 0;
+        for (Segment segment : pending){
+            long left = Math.max(1, segment.getNotBefore() - now);
+            wait = wait == 0 ? left : Math.min(wait, left);
+        }
+        return wait;
+    }
+
+    /**
+     * This method splits the segment in flight with the most bytes left in
+     * two. The first half stays with its RangeGetter and the second half is
+     * returned as a new segment. The split is on a chunk boundary.
+     * @return the stolen segment, or null if no segment is large enough
+     */
+    private Segment steal(){
+        Segment largest = null;
+        for (Segment segment : inFlight){
+            // Both twins must keep the same range, so they aren't split
+            if (segment.getTwin() != null){
+                continue;
+            }
+            if (largest == null || segment.getRemaining() > largest.getRemaining()){
+                largest = segment;
+            }
+        }
+        if (largest == null){
+            return null;
+        }
+
+        long remainingChunks = (largest.getRemaining() + chunkSize - 1) / chunkSize;
+        if (remainingChunks < 2 * MIN_STEAL_CHUNKS){
+            return null;
+        }
+        long split = largest.getStart() + (remainingChunks - remainingChunks / 2) * chunkSize;
+        Segment stolen = new Segment(split, largest.getEnd(), scoreboard.pick());
+        largest.setEnd(split - 1);
+        return stolen;
+    }
+
+    /**
+     * This method creates a twin for the slowest segment in flight that
+     * isn't hedged yet, and whose last hedge didn't fail too recently. The
+     * twin downloads what is left of the segment from another mirror.
+     * @return the twin, or null if there is no segment to hedge
+     */
+    private Segment hedge(){
+        long now = System.currentTimeMillis();
+        Segment slowest = null;
+        for (Segment segment : inFlight){
+            if (segment.getTwin() != null || segment.getRemaining() <= 0 || segment.getNotBefore() > now){
+                continue;
+            }
+            if (slowest == null || segment.getThroughput() < slowest.getThroughput()){
+                slowest = segment;
+            }
+        }
+        if (slowest == null){
+            return null;
+        }
+
+        Segment twin = new Segment(slowest.getStart(), slowest.getEnd(), scoreboard.pickOther(slowest.getURL()));
+        twin.setTwin(slowest);
+        slowest.setTwin(twin);
+        return twin;
+    }
+
+    /**
+     * This method tells a RangeGetter how many bytes to read for the next
+     * chunk of its segment. Once the segment is done (or was stolen up to
+     * this point, or cancelled) it returns 0 and the segment is no longer in
+     * flight. A hedged segment that is done cancels its twin. If there are
+     * more segments in flight than the limit, the segment ends here and the
+     * rest of it is put back.
+     * @param segment the segment of the RangeGetter
+     * @return the size of the next chunk, or 0 if the segment is done
+     */
+    public int nextChunkSize(Segment segment){
+        lock.lock();
+        try {
+            long remaining = segment.getRemaining();
+            // A segment with a twin is left to the hedge, and one with its
+            // last chunk left isn't worth another request
+            if (inFlight.size() > limit && segment.getTwin() == null && remaining > chunkSize){
+                Segment rest = new Segment(segment.getStart(), segment.getEnd(), null);
+                rest.setAttempts(segment.getAttempts());
+                pending.addFirst(rest);
+                segment.setEnd(segment.getStart() - 1);
+                remaining = 0;
+            }
+            if (remaining <= 0){
+                inFlight.remove(segment);
+                Segment twin = segment.getTwin();
+                if (twin != null && !segment.isCancelled() && !twin.isCancelled()){
+                    twin.cancel();
+                }
+                changed.signalAll();
+                return 0;
+            }
+            return (int) Math.min(chunkSize, remaining);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This method moves the start of the segment past a chunk that was put
+     * in the queue.
+     * @param segment the segment of the RangeGetter
+     * @param size the size of the chunk
+     */
+    public void chunkDone(Segment segment, int size){
+        lock.lock();
+        try {
+            segment.setStart(segment.getStart() + size);
+            bytesDone += size;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This method limits the number of segments in flight. Segments that
+     * are already in flight above a lower limit end at their next chunk.
+     * @param limit the number of segments
+     */
+    public void setLimit(int limit){
+        lock.lock();
+        try {
+            this.limit = limit;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of bytes downloaded so far
+     */
+    public long getBytesDone(){
+        lock.lock();
+        try {
+            return bytesDone;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the number of times a segment failed so far
+     */
+    public long getFailures(){
+        lock.lock();
+        try {
+            return failures;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This method aborts the download. The RangeGetters of the segments in
+     * flight stop at their next chunk, or once their connection is closed.
+     * The others get no more segments.
+     */
+    public void abort(){
+        lock.lock();
+        try {
+            aborted = true;
+            pending.clear();
+            for (Segment segment : inFlight){
+                segment.cancel();
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * This method takes back a segment whose RangeGetter stopped before
+     * finishing it - because it failed, or because it was cancelled. What is
+     * left of a failed segment is put back, to be downloaded from another
+     * mirror after a backoff. If the segment has a twin that is still
+     * running, the twin takes care of the range, and isn't hedged again
+     * until a backoff passed.
+     * @param segment the segment that stopped
+     * @return false if the range failed more than the retry budget allows
+     */
+    public boolean retry(Segment segment){
+        lock.lock();
+        try {
+            inFlight.remove(segment);
+            changed.signalAll();
+
+            Segment twin = segment.getTwin();
+            if (twin != null){
+                // The twin can be hedged again
+                twin.setTwin(null);
+            }
+            if (segment.isCancelled() || segment.getRemaining() <= 0){
+                return true;
+            }
+
+            scoreboard.recordFailure(segment.getURL());
+            failures++;
+            if (twin != null && !twin.isCancelled()){
+                // Otherwise the next idle RangeGetter would hedge it again
+                // right away, e.g. on a mirror that is down
+                twin.setNotBefore(System.currentTimeMillis() + BASE_BACKOFF);
+                return true;
+            }
+            int attempts = segment.getAttempts() + 1;
+            if (attempts > MAX_RETRIES){
+                return false;
+            }
+            long backoff = Math.min(MAX_BACKOFF, BASE_BACKOFF << Math.min(attempts - 1, 16));
+
+            Segment retry = new Segment(segment.getStart(), segment.getEnd(), scoreboard.pickOther(segment.getURL()));
+            retry.setAttempts(attempts);
+            retry.setNotBefore(System.currentTimeMillis() + backoff);
+            pending.addFirst(retry);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,538 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.Callable;
+
+/**
+ * This class downloads the ranges with a few event loops instead of a thread
+ * per connection. Each loop drives many connections through one Selector,
+ * with non-blocking SocketChannels: it sends the range requests, parses the
+ * responses as they arrive, and reads the bodies straight into chunk buffers
+ * of the pool, which it puts in the queue for the Writer - the same way a
+ * RangeGetter does. The segments come from the SegmentScheduler, and a
+ * connection that finished its range is kept alive for the next one.
+ * A loop never blocks: when the pool has no free buffer, the connections
+ * that need one stop reading until the Writer gives one back, and the
+ * scheduler is asked for segments without waiting.
+ * Only plain HTTP/1.1 is spoken - no TLS, redirects or chunked responses -
+ * and the chunks always go through the queue.
+ */
+public class SelectorEngine {
+
+    private final static int TIME_TO_WAIT = 10000; // Time a connection may make no progress
+    private final static int SELECT_WAIT = 100; // Time between two looks at the scheduler
+    private final static int STALL_WAIT = 5; // Time between two looks at the pool, while it is empty
+    private final static int MAX_HEADER_BYTES = 16 * 1024; // Largest response header
+    private final static int THROUGHPUT_SAMPLE = 1024 * 1024; // Bytes read between two throughput reports
+    private final static long THROUGHPUT_SAMPLE_NANOS = 250000000; // Or time spent reading between two reports
+    private final static byte[] END_OF_HEADER = {'\r', '\n', '\r', '\n'};
+
+    private SegmentScheduler scheduler;
+    private MirrorScoreboard scoreboard;
+    private ConnectionStats connectionStats;
+    private BlockingDeque<Chunk> queue;
+    private ChunkBufferPool bufferPool;
+    private QueueStats queueStats;
+
+    public SelectorEngine(SegmentScheduler scheduler, MirrorScoreboard scoreboard, ConnectionStats connectionStats,
+                          BlockingDeque<Chunk> queue, ChunkBufferPool bufferPool, QueueStats queueStats){
+        this.scheduler = scheduler;
+        this.scoreboard = scoreboard;
+        this.connectionStats = connectionStats;
+        this.queue = queue;
+        this.bufferPool = bufferPool;
+        this.queueStats = queueStats;
+    }
+
+    /**
+     * This method creates an event loop, to be run in a thread of its own.
+     * @param numOfConnections the number of connections the loop drives
+     * @return the loop. It throws IOException if a range failed more times
+     * than the scheduler allows
+     */
+    public Callable<Void> newLoop(int numOfConnections){
+        return () -> {
+            runLoop(numOfConnections);
+            return null;
+        };
+    }
+
+    /**
+     * This method runs an event loop until there is nothing left to
+     * download.
+     */
+    private void runLoop(int numOfConnections) throws IOException {
+        Thread thread = Thread.currentThread();
+        ArrayList<Connection> connections = new ArrayList<Connection>();
+        try (Selector selector = Selector.open()){
+            for (int i = 0; i < numOfConnections; i++){
+                connections.add(new Connection(thread, selector));
+            }
+
+            while (true){
+                // Idle connections get new segments, and the connections
+                // that waited for a buffer, were cancelled or timed out are
+                // taken care of
+                boolean idle = true;
+                boolean stalled = false;
+                long now = System.nanoTime();
+                for (Connection connection : connections){
+                    if (connection.segment == null){
+                        Segment segment = this.scheduler.poll();
+                        if (segment != null){
+                            connection.start(segment);
+                        }
+                    } else {
+                        connection.check(now);
+                    }
+                    idle &= connection.segment == null;
+                    stalled |= connection.stallStart != 0;
+                }
+                if (idle && this.scheduler.isFinished()){
+                    break;
+                }
+
+                selector.select(stalled ? STALL_WAIT : SELECT_WAIT);
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()){
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    if (key.isValid()){
+                        ((Connection) key.attachment()).handle();
+                    }
+                }
+            }
+            System.out.println("[" + thread.getId() + "] Finished downloading");
+        } finally {
+            for (Connection connection : connections){
+                connection.close();
+                connection.releaseChunk();
+            }
+        }
+    }
+
+    private enum State { IDLE, CONNECTING, SENDING, HEADER, BODY }
+
+    /**
+     * This class holds one connection of a loop, and the range request it
+     * is working on. A connection without a segment may still hold an open
+     * channel, kept alive for the next request to the same mirror.
+     */
+    private class Connection {
+        private Thread thread;
+        private Selector selector;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private String address; // host:port the channel is connected to
+        private boolean reused;
+        private boolean keepAlive;
+        private State state = State.IDLE;
+        private long lastProgress;
+
+        private Segment segment;
+        private URL url;
+        private long requestTime;
+        private long requestStart;
+        private long requestEnd;
+        private ByteBuffer request;
+        private ByteBuffer header = ByteBuffer.allocate(MAX_HEADER_BYTES);
+        private long bodyLeft;
+        private long offset;
+        private ByteBuffer chunk;
+        private long stallStart = 0;
+        private long sampleBytes;
+        private long sampleStart;
+
+        Connection(Thread thread, Selector selector){
+            this.thread = thread;
+            this.selector = selector;
+        }
+
+        /**
+         * This method sends the range request of a segment, on the channel
+         * that is kept alive if it is to the same mirror.
+         */
+        void start(Segment segment) throws IOException {
+            // The range is read once, since the segment may be cancelled
+            // at any time
+            long startByte = segment.getStart();
+            long endByte = segment.getEnd();
+            if (endByte < startByte){
+                // A twin that finished before this segment started
+                SelectorEngine.this.scheduler.nextChunkSize(segment);
+                return;
+            }
+            this.segment = segment;
+            this.url = segment.getURL();
+            this.offset = startByte;
+            String action = segment.getTwin() == null ? "Start downloading" : "Hedging";
+            System.out.println("[" + thread.getId() + "] " + action + " range (" +
+                    startByte + " - " + endByte + ") from: " + url.toString());
+
+            String path = url.getFile().isEmpty() ? "/" : url.getFile();
+            String host = url.getPort() == -1 ? url.getHost() : url.getHost() + ":" + url.getPort();
+            this.request = StandardCharsets.ISO_8859_1.encode("GET " + path + " HTTP/1.1\r\n" +
+                    "Host: " + host + "\r\n" +
+                    "Range: bytes=" + startByte + "-" + endByte + "\r\n" +
+                    "Accept-Encoding: identity\r\n" +
+                    "Connection: keep-alive\r\n\r\n");
+            this.requestTime = System.nanoTime();
+            this.requestStart = startByte;
+            this.requestEnd = endByte;
+            SelectorEngine.this.connectionStats.recordRequest();
+
+            String address = url.getHost() + ":" + (url.getPort() == -1 ? url.getDefaultPort() : url.getPort());
+            try {
+                if (channel != null && channel.isOpen() && address.equals(this.address)){
+                    reused = true;
+                    send();
+                } else {
+                    close();
+                    this.address = address;
+                    connect();
+                }
+            } catch (IOException e){
+                fail(e);
+            }
+        }
+
+        private void connect() throws IOException {
+            reused = false;
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            key = channel.register(selector, SelectionKey.OP_CONNECT, this);
+            lastProgress = System.nanoTime();
+            SelectorEngine.this.connectionStats.recordConnection();
+            if (channel.connect(new InetSocketAddress(url.getHost(), url.getPort() == -1 ? url.getDefaultPort() : url.getPort()))){
+                send();
+            } else {
+                state = State.CONNECTING;
+            }
+        }
+
+        private void send() throws IOException {
+            state = State.SENDING;
+            request.rewind();
+            header.clear();
+            lastProgress = System.nanoTime();
+            key.interestOps(SelectionKey.OP_WRITE);
+        }
+
+        /**
+         * This method is called when the channel is ready for what the
+         * connection waits for.
+         */
+        void handle() throws IOException {
+            try {
+                switch (state){
+                    case IDLE:
+                        // The server closed the connection that was kept
+                        // alive, or sent something it shouldn't have
+                        close();
+                        break;
+                    case CONNECTING:
+                        if (channel.finishConnect()){
+                            send();
+                        }
+                        break;
+                    case SENDING:
+                        channel.write(request);
+                        lastProgress = System.nanoTime();
+                        if (!request.hasRemaining()){
+                            state = State.HEADER;
+                            key.interestOps(SelectionKey.OP_READ);
+                        }
+                        break;
+                    case HEADER:
+                        readHeader();
+                        break;
+                    case BODY:
+                        readBody();
+                        break;
+                }
+            } catch (IOException e){
+                fail(e);
+            }
+        }
+
+        /**
+         * This method reads the response header. The bytes after the header
+         * are the start of the body.
+         */
+        private void readHeader() throws IOException {
+            if (!header.hasRemaining()){
+                throw new IOException("The response header is too large");
+            }
+            if (channel.read(header) < 0){
+                throw new EOFException("Connection closed before the response header");
+            }
+            lastProgress = System.nanoTime();
+            int end = indexOf(header, END_OF_HEADER);
+            if (end < 0){
+                return;
+            }
+            parseHeader(StandardCharsets.ISO_8859_1.decode(ByteBuffer.wrap(header.array(), 0, end)).toString());
+            SelectorEngine.this.scoreboard.recordFirstByte(url, (lastProgress - requestTime) / 1000000);
+            sampleBytes = 0;
+            sampleStart = lastProgress;
+            // What is left in the header buffer is the start of the body
+            header.limit(header.position());
+            header.position(end + END_OF_HEADER.length);
+            state = State.BODY;
+            readBody();
+        }
+
+        private void parseHeader(String text) throws IOException {
+            String[] lines = text.split("\r\n");
+            String[] statusLine = lines[0].split(" ", 3);
+            if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/")){
+                throw new IOException("Invalid response: " + lines[0]);
+            }
+            keepAlive = statusLine[0].equals("HTTP/1.1");
+            bodyLeft = -1;
+            String contentRange = null;
+            for (int i = 1; i < lines.length; i++){
+                int colon = lines[i].indexOf(':');
+                if (colon < 0){
+                    continue;
+                }
+                String name = lines[i].substring(0, colon).trim();
+                String value = lines[i].substring(colon + 1).trim();
+                if (name.equalsIgnoreCase("Content-Length")){
+                    bodyLeft = Long.parseLong(value);
+                } else if (name.equalsIgnoreCase("Transfer-Encoding") && !value.equalsIgnoreCase("identity")){
+                    throw new IOException("Unsupported transfer encoding: " + value);
+                } else if (name.equalsIgnoreCase("Connection")){
+                    keepAlive = value.equalsIgnoreCase("keep-alive") || (keepAlive && !value.equalsIgnoreCase("close"));
+                } else if (name.equalsIgnoreCase("Content-Range")){
+                    contentRange = value;
+                }
+            }
+            int responseCode;
+            try {
+                responseCode = Integer.parseInt(statusLine[1]);
+            } catch (NumberFormatException e){
+                throw new IOException("Invalid response: " + lines[0]);
+            }
+            RangeGetter.checkRange(responseCode, contentRange, requestStart, requestEnd);
+            if (bodyLeft < 0){
+                // The body ends when the connection is closed
+                keepAlive = false;
+            }
+        }
+
+        /**
+         * This method reads the body into chunks, as long as there are bytes
+         * on the channel and free buffers in the pool. A chunk that is full
+         * is put in the queue.
+         */
+        private void readBody() throws IOException {
+            while (true){
+                if (chunk == null){
+                    int chunkSize = SelectorEngine.this.scheduler.nextChunkSize(segment);
+                    if (chunkSize == 0){
+                        done();
+                        return;
+                    }
+                    chunk = SelectorEngine.this.bufferPool.poll();
+                    if (chunk == null){
+                        // Reading resumes once the Writer gives a buffer
+                        // back
+                        if (stallStart == 0){
+                            stallStart = System.nanoTime();
+                        }
+                        key.interestOps(0);
+                        return;
+                    }
+                    if (stallStart != 0){
+                        long stalled = System.nanoTime() - stallStart;
+                        SelectorEngine.this.queueStats.recordGetterBlocked(stalled);
+                        sampleStart += stalled;
+                        lastProgress += stalled;
+                        stallStart = 0;
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                    chunk.limit(chunkSize);
+                }
+
+                if (header.hasRemaining()){
+                    int length = Math.min(header.remaining(), chunk.remaining());
+                    ByteBuffer start = header.duplicate();
+                    start.limit(start.position() + length);
+                    chunk.put(start);
+                    header.position(header.position() + length);
+                } else {
+                    int bytesRead = channel.read(chunk);
+                    if (bytesRead < 0){
+                        throw new EOFException("Connection closed at byte " + (offset + chunk.position()));
+                    }
+                    if (bytesRead == 0){
+                        return;
+                    }
+                    lastProgress = System.nanoTime();
+                }
+
+                if (!chunk.hasRemaining()){
+                    chunkRead();
+                }
+            }
+        }
+
+        /**
+         * This method puts a full chunk in the queue, and reports it to the
+         * scheduler and the scoreboard.
+         */
+        private void chunkRead() throws IOException {
+            int size = chunk.limit();
+            long now = System.nanoTime();
+            sampleBytes += size;
+            if (sampleBytes >= THROUGHPUT_SAMPLE || now - sampleStart >= THROUGHPUT_SAMPLE_NANOS){
+                SelectorEngine.this.scoreboard.recordThroughput(url, sampleBytes, now - sampleStart);
+                sampleBytes = 0;
+                sampleStart = now;
+            }
+
+            chunk.flip();
+            try {
+                // There are as many places in the queue as buffers in the
+                // pool, so this doesn't wait
+                SelectorEngine.this.queue.put(new Chunk(chunk, offset));
+            } catch (InterruptedException e){
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while putting a chunk in the queue", e);
+            }
+            chunk = null;
+            offset += size;
+            if (bodyLeft > 0){
+                bodyLeft -= size;
+            }
+            SelectorEngine.this.scheduler.chunkDone(segment, size);
+        }
+
+        /**
+         * This method ends a segment that was downloaded, or was stolen up to
+         * this point. If the whole response was read, the connection is
+         * kept alive.
+         */
+        private void done(){
+            if (sampleBytes > 0){
+                SelectorEngine.this.scoreboard.recordThroughput(url, sampleBytes, System.nanoTime() - sampleStart);
+            }
+            segment = null;
+            if (keepAlive && bodyLeft == 0 && !header.hasRemaining()){
+                // A kept alive connection that becomes readable was closed by
+                // the server
+                state = State.IDLE;
+                key.interestOps(SelectionKey.OP_READ);
+            } else {
+                close();
+            }
+        }
+
+        /**
+         * This method checks a connection that has a segment, on every turn
+         * of the loop.
+         */
+        void check(long now) throws IOException {
+            if (segment.isCancelled()){
+                // The twin of the segment finished first, or the download
+                // was aborted
+                releaseChunk();
+                close();
+                Segment cancelled = segment;
+                segment = null;
+                SelectorEngine.this.scheduler.retry(cancelled);
+            } else if (stallStart != 0){
+                try {
+                    readBody();
+                } catch (IOException e){
+                    fail(e);
+                }
+            } else if (now - lastProgress > TIME_TO_WAIT * 1000000L){
+                fail(new SocketTimeoutException("No response for " + TIME_TO_WAIT + " ms"));
+            }
+        }
+
+        /**
+         * This method gives a segment that failed back to the scheduler. A
+         * connection that was kept alive may have been closed by the server
+         * just before the request was sent, so the request is sent again on
+         * a new connection, without counting it as a failure.
+         * @throws IOException if the range failed too many times
+         */
+        private void fail(IOException e) throws IOException {
+            boolean nothingReceived = state == State.SENDING || (state == State.HEADER && header.position() == 0);
+            releaseChunk();
+            close();
+            stallStart = 0;
+            if (reused && nothingReceived && !segment.isCancelled()){
+                try {
+                    connect();
+                    return;
+                } catch (IOException reconnectFailure){
+                    close();
+                    e = reconnectFailure;
+                }
+            }
+
+            Segment failed = segment;
+            segment = null;
+            if (!failed.isCancelled()){
+                System.err.println("[" + thread.getId() + "] A trouble occurred while trying to read range: " +
+                        failed.getStart() + "-" + failed.getEnd() + " from: " + failed.getURL() + ", retrying");
+            }
+            if (!SelectorEngine.this.scheduler.retry(failed)){
+                throw new IOException("Range (" + failed.getStart() + " - " + failed.getEnd() +
+                        ") failed too many times", e);
+            }
+        }
+
+        void releaseChunk(){
+            if (chunk != null){
+                SelectorEngine.this.bufferPool.release(chunk);
+                chunk = null;
+            }
+        }
+
+        void close(){
+            state = State.IDLE;
+            if (channel != null){
+                try {
+                    channel.close();
+                } catch (IOException e){
+                    // The channel is dropped either way
+                }
+                channel = null;
+                key = null;
+            }
+        }
+    }
+
+    /**
+     * @return the index of pattern in the bytes of buffer before its
+     * position, or -1
+     */
+    private static int indexOf(ByteBuffer buffer, byte[] pattern){
+        byte[] bytes = buffer.array();
+        for (int i = 0; i + pattern.length <= buffer.position(); i++){
+            int j = 0;
+            while (j < pattern.length && bytes[i + j] == pattern[j]){
+                j++;
+            }
+            if (j == pattern.length){
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -1,164 +1,495 @@
 import java.io.*;
-import java.nio.file.Files;
-import java.nio.file.Path;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
 import java.util.concurrent.BlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 /**
  * This class is responsible for writing the downloaded file. Meaning, it
  * takes chunks out of the queue are writes them down to the disk in the
  * correct order, such that when the writer finishes it's work, the file is
  * downloaded.
+ * The metadata is a memory-mapped file, which is updated and forced to the
+ * disk according to a CheckpointPolicy. The chunks are marked on the heap
+ * as they are written, and only reach the mapped file at a checkpoint,
+ * after the downloaded file was synced to the disk. So the metadata never
+ * claims chunks that could still be lost, even if the OS crashes.
+ * The queue may be drained by a few writer threads at once. Each thread
+ * writes through its own channel, so the threads don't share a file
+ * pointer, and the metadata is marked under the same lock rules as
+ * transfer mode.
+ * Each writer thread merges the chunks of a range into runs with a
+ * ChunkCoalescer, and writes a run with one gathering write. A run is
+ * written when it is large enough, or as soon as the queue is empty, so the
+ * chunks are only held back while the writer has more chunks to write.
+ *
+ * In transfer mode there is no queue: each RangeGetter transfers its range
+ * from the connection straight into the file with transferChunk, and the
+ * writer thread only reports the progress and makes the checkpoints that
+ * are due.
+ * mmap mode is the same, except that the file is mapped to memory in
+ * windows of about MAP_WINDOW bytes, and the RangeGetters read their chunks
+ * straight into the mapped windows. A checkpoint forces the windows that
+ * were written to instead of syncing the file.
+ * If the RangeGetters stop before the whole file was downloaded, the writer
+ * is stopped too. It writes the chunks that are left in the queue, makes a
+ * last checkpoint and keeps the metadata, so the download can be resumed.
  */
 public class Writer implements Runnable {
 
     private BlockingDeque<Chunk> queue;
-    private final static double CHUNK_SIZE = 4096.0; // Size of chunk to download
-    private int mFileSize;
-    private int mDownloaded = 0;
-    private int numOfChunks;
-
-    private Path currentRelativePath;
-    private Path temporaryPath;
-    private String pathToDownloadTo;
-    private Path metaDataPath;
-    private String temporaryPathString;
-    private File metaData;
+    private ChunkBufferPool bufferPool;
+    private QueueStats queueStats;
+    private final static int SHUTDOWN_WAIT = 1000; // Time the shutdown hook waits for the writer
+    private final static long PROGRESS_WAIT = 100; // Time between progress checks when there is nothing to write
+    private final static long MAP_WINDOW = 64 * 1024 * 1024; // Size of a mapped window of the file in mmap mode
+    public final static String QUEUE_MODE = "queue";
+    public final static String TRANSFER_MODE = "transfer";
+    public final static String MMAP_MODE = "mmap";
+    private String mode;
+    private int numOfWriters;
+    private long maxRunBytes;
+    private long mFileSize;
+    private int chunkSize;
+    private long mapWindow;
+    private final AtomicLong mDownloaded = new AtomicLong();
+
+    private Metadata metaDataObject;
+    private MetadataFile metadataFile;
+    private CheckpointPolicy checkpointPolicy;
     private File fileToDownload;
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private MappedByteBuffer[] windows;
+    private boolean[] dirtyWindows;
 
-    private File tmpMetaDataFile;
-    Path tempPath;
+    // Guards the file and the metadata. Writing a chunk and marking it takes
+    // the read lock, so the writer threads (or in transfer and mmap modes,
+    // the RangeGetters) write at the same time. In transfer and mmap modes
+    // only the mark takes it, since the chunk is read from the network while
+    // it is written. A checkpoint takes the write lock, so no chunk is marked between
+    // the sync of the file and the force of the metadata
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private boolean finished = false;
+    private volatile boolean stopped = false;
 
-    public Writer(BlockingDeque<Chunk> queue, String fileName, int fileSize, int numOfChunks){
+    public Writer(String mode, int numOfWriters, long maxRunBytes, BlockingDeque<Chunk> queue, ChunkBufferPool bufferPool, QueueStats queueStats,
+                  String fileName, long fileSize, int chunkSize,
+                  Metadata metaData, MetadataFile metadataFile,
+                  CheckpointPolicy checkpointPolicy){
+        this.mode = mode;
+        this.numOfWriters = numOfWriters;
+        this.maxRunBytes = maxRunBytes;
         this.queue = queue;
-        this.fileToDownload = new File(fileName);
+        this.bufferPool = bufferPool;
+        this.queueStats = queueStats;
         this.mFileSize = fileSize;
-        this.numOfChunks = numOfChunks;
+        this.chunkSize = chunkSize;
+        // A window holds whole chunks
+        this.mapWindow = Math.max(1, MAP_WINDOW / chunkSize) * chunkSize;
+        this.metaDataObject = metaData;
+        this.metadataFile = metadataFile;
+        this.checkpointPolicy = checkpointPolicy;
 
-        // Configure all the relevant paths for the metadata and the tmp
-        // metadata
-        currentRelativePath = Paths.get("");
-        pathToDownloadTo = currentRelativePath.toAbsolutePath().toString();
+        String pathToDownloadTo = Paths.get("").toAbsolutePath().toString();
         fileToDownload = new File(pathToDownloadTo + '/' + fileName);
-        temporaryPath = currentRelativePath.resolve(fileName + ".1.tmp");
-        metaDataPath = currentRelativePath.resolve(fileName + ".tmp");
-        temporaryPathString = temporaryPath.toString();
-
-        metaData = new File(metaDataPath.toString());
-        tmpMetaDataFile = new File(temporaryPathString);
-        tempPath = Paths.get(tmpMetaDataFile.getAbsolutePath());
-
     }
 
     /**
-     * This method is intended to serialize the Metadata object. Meaning, it
-     * receives a metadata object and saves it to a file in the disk
-     * @param metadataObject the object we wish to serialize
+     * The methods gets a chunk from the queue and adds it to the runs of
+     * the writer thread. Runs that are ready are written to the downloaded
+     * file, the metadata is updated that their chunks were downloaded, and
+     * the chunks' buffers are given back to the pool. Then a checkpoint is
+     * made if the policy says it is due.
+     * If the queue is empty, all the runs are written before waiting for
+     * the next chunk. If no chunk arrives before the checkpoint is due, only
+     * the checkpoint is made. It is called by all the writer threads at once.
+     * @param file the channel of the writer thread
+     * @param coalescer the runs of the writer thread
+     * @param metaData the metadata we update
+     * @throws InterruptedException if interrupted while waiting for a chunk
      */
-    private void serialize(Metadata metadataObject){
+    private void readChunk(FileChannel file, ChunkCoalescer coalescer, Metadata metaData) throws InterruptedException {
         try {
-            // Write to a tmp file, so if the program stops in the middle of
-            // the process and the tmp will be corrupted, then the metadata
-            // will be safe
-            FileOutputStream tmpMetaData = new FileOutputStream(temporaryPathString);
-            ObjectOutputStream out = new ObjectOutputStream(tmpMetaData);
-            out.writeObject(metadataObject);
-            out.close();
-            tmpMetaData.close();
-            // Rename the tmp file to the metadata file
-            Files.move(tempPath, metaDataPath, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            queueStats.recordDepth(queue.size());
+            Chunk chunk = queue.poll();
+            if (chunk == null){
+                writeRuns(file, coalescer.takeAll(), metaData);
+
+                long waitStart = System.nanoTime();
+                // The wait is short, so the writer threads notice that the
+                // download is done
+                chunk = queue.poll(Math.min(PROGRESS_WAIT, checkpointPolicy.millisUntilDue()), TimeUnit.MILLISECONDS);
+                queueStats.recordWriterBlocked(System.nanoTime() - waitStart);
+            }
+
+            if (chunk != null){
+                // A hedged range may bring the same chunk twice, only the
+                // first one is written
+                if (metaData.get((int)(chunk.getOffset()/chunkSize))){
+                    bufferPool.release(chunk.getData());
+                } else {
+                    writeRuns(file, coalescer.add(chunk), metaData);
+                }
+            }
+
+            // Once enough chunks are written, we want to save the
+            // metadata to the disk so if the program is exited or
+            // stopped, we can resume to the download
+            checkpointIfDue();
 
         } catch (IOException e){
-            System.err.println("Unable to write to metadata file");
+            System.err.println("Unable to write data to downloaded file");
             System.err.println("Download failed");
             System.exit(1);
         }
     }
 
-     /**
-      * This method is intended to deserialize the Metadata object from the
-      * file. Meaning, it gets a file from the disk and translate it to
-      * Metadata object.
-      * @return metadataObject that is in the file
-      */
-    private Metadata deserialize(){
-        Metadata metadataObject = null;
+    /**
+     * This method is used in transfer and mmap modes. It transfers one
+     * chunk from the connection of a RangeGetter into the file at its
+     * offset, and marks the chunk as downloaded. It may be called by many
+     * RangeGetters at once.
+     * The chunk is read from the connection without the lock, which may
+     * take long on a slow mirror, so a checkpoint doesn't wait for it. Only
+     * the mark takes the read lock: a chunk written while a checkpoint syncs
+     * the file is marked after the checkpoint, and is claimed by the next
+     * one.
+     * @param source the channel of the connection
+     * @param offset the offset of the chunk in the file
+     * @param size the size of the chunk
+     * @throws IOException if the chunk couldn't be read or written
+     */
+    public void transferChunk(ReadableByteChannel source, long offset, int size) throws IOException {
+        // The bytes are written even if a hedged twin already wrote this
+        // chunk, they are the same bytes
+        int window = -1;
+        if (MMAP_MODE.equals(mode)){
+            window = readIntoWindow(source, offset, size);
+        } else if (channel.transferFrom(source, offset, size) < size){
+            throw new EOFException("Connection closed at byte " + offset);
+        }
+        lock.readLock().lock();
         try {
-            FileInputStream fileIn = new FileInputStream(metaDataPath.toString());
-            ObjectInputStream in = new ObjectInputStream(fileIn);
-            metadataObject = (Metadata) in.readObject();
-            in.close();
-            fileIn.close();
-        } catch (IOException | ClassNotFoundException e){
-            System.err.println("Unable to get object from metadata file");
-            System.err.println("Download failed");
-            System.exit(1);
+            if (window >= 0){
+                // The window is forced by the checkpoint that claims the chunk
+                dirtyWindows[window] = true;
+            }
+            chunkWritten(metaDataObject, (int)(offset/chunkSize), size);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * This method reads one chunk from the connection into the mapped
+     * window it belongs to. Windows are a multiple of chunkSize, so a chunk
+     * is never split between two windows.
+     * @param source the channel of the connection
+     * @param offset the offset of the chunk in the file
+     * @param size the size of the chunk
+     * @return the index of the window
+     * @throws IOException if the chunk couldn't be read
+     */
+    private int readIntoWindow(ReadableByteChannel source, long offset, int size) throws IOException {
+        int index = (int)(offset / mapWindow);
+        ByteBuffer target = window(index).slice((int)(offset - index * mapWindow), size);
+        while (target.hasRemaining()){
+            if (source.read(target) < 0){
+                throw new EOFException("Connection closed at byte " + (offset + target.position()));
+            }
         }
-        return metadataObject;
+        return index;
     }
 
     /**
-     * The methods gets a chunk from the queue and writes it to the
-     * downloaded file. It also updates the metadata that this chunk was
-     * downloaded.
-     * @param file the file we wish to download to
+     * This method maps a window of the file the first time it is needed.
+     * @param index the index of the window
+     * @return the mapped window
+     * @throws IOException if the window couldn't be mapped
+     */
+    private synchronized MappedByteBuffer window(int index) throws IOException {
+        if (windows[index] == null){
+            long start = index * mapWindow;
+            windows[index] = channel.map(FileChannel.MapMode.READ_WRITE, start, Math.min(mapWindow, mFileSize - start));
+        }
+        return windows[index];
+    }
+
+    /**
+     * This method marks a chunk that was written as downloaded. Should be
+     * called while holding the read lock.
      * @param metaData the metadata we update
+     * @param index the index of the chunk
+     * @param size the size of the chunk
      */
-    private void readChunk(RandomAccessFile file, Metadata metaData){
+    private void chunkWritten(Metadata metaData, int index, int size){
+        if (metaData.setIndexToTrue(index)){
+            checkpointPolicy.chunkWritten(size);
+            if (this.mDownloaded.getAndAdd(size) == 0){
+                System.out.println("Downloaded 0%");
+            }
+        }
+    }
+
+    /**
+     * This method makes a checkpoint if the policy says it is due.
+     * @throws IOException if the sync failed
+     */
+    private void checkpointIfDue() throws IOException {
+        if (!checkpointPolicy.isCheckpointDue()){
+            return;
+        }
+        lock.writeLock().lock();
         try {
-            Chunk chunk = queue.take();
-            int index = (int)(chunk.getOffset()/CHUNK_SIZE);
+            // Another thread may have made it while we waited for the lock
+            if (!finished && checkpointPolicy.isCheckpointDue()){
+                checkpoint();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
 
-            file.seek(chunk.getOffset());
-            file.write(chunk.getData());
+    /**
+     * This method writes runs of chunks to the file, each with a gathering
+     * write at its offset, and marks their chunks as downloaded. A write may
+     * write only a part of the run, so it is repeated until the run is
+     * written. The buffers of the chunks are given back to the pool.
+     * @param file the channel of the writer thread
+     * @param runs the runs to write
+     * @param metaData the metadata we update
+     * @throws IOException if the write failed
+     */
+    private void writeRuns(FileChannel file, List<ChunkCoalescer.Run> runs, Metadata metaData) throws IOException {
+        for (ChunkCoalescer.Run run : runs){
+            List<Chunk> chunks = run.getChunks();
+            ByteBuffer[] buffers = new ByteBuffer[chunks.size()];
+            int[] sizes = new int[chunks.size()];
+            for (int i = 0; i < buffers.length; i++){
+                buffers[i] = chunks.get(i).getData();
+                sizes[i] = chunks.get(i).getSize();
+            }
 
-            metaData.setIndexToTrue(index);
-            if (this.mDownloaded == 0){
-                System.out.println("Downloaded 0%");
+            lock.readLock().lock();
+            try {
+                file.position(run.getOffset());
+                long remaining = run.getSize();
+                while (remaining > 0){
+                    remaining -= file.write(buffers);
+                }
+                for (int i = 0; i < sizes.length; i++){
+                    chunkWritten(metaData, (int)(chunks.get(i).getOffset()/chunkSize), sizes[i]);
+                }
+            } finally {
+                lock.readLock().unlock();
             }
-            this.mDownloaded += chunk.getSize();
+            queueStats.recordWrite(run.getSize());
 
+            for (ByteBuffer buffer : buffers){
+                bufferPool.release(buffer);
+            }
+        }
+    }
+
+    /**
+     * This method opens the channel of a writer thread.
+     * Every writer thread has its own channel, since a gathering write
+     * writes at the position of the channel.
+     * @return the channel
+     * @throws IOException if the file couldn't be opened
+     */
+    private FileChannel openWriterChannel() throws IOException {
+        return FileChannel.open(fileToDownload.toPath(), StandardOpenOption.WRITE);
+    }
+
+    /**
+     * @return the runs of a new writer thread. The runs of all the threads
+     * hold at most half of the buffers of the pool, so the RangeGetters
+     * always have buffers to read into
+     */
+    private ChunkCoalescer newCoalescer(){
+        long maxPendingBytes = Math.max((long) chunkSize, bufferPool.getCapacity() / (2L * numOfWriters));
+        return new ChunkCoalescer(maxRunBytes, maxPendingBytes);
+    }
+
+    /**
+     * This method syncs the downloaded file and then copies the chunks that
+     * were marked to the metadata file and forces it, so every chunk the
+     * metadata claims is already on the disk.
+     * Should be called while holding the write lock.
+     * @throws IOException if the sync failed
+     */
+    private void checkpoint() throws IOException {
+        if (MMAP_MODE.equals(mode)){
+            for (int i = 0; i < windows.length; i++){
+                if (dirtyWindows[i]){
+                    dirtyWindows[i] = false;
+                    windows[i].force();
+                }
+            }
+        } else {
+            raf.getFD().sync();
+        }
+        metadataFile.force();
+        checkpointPolicy.checkpointDone();
+    }
+
+    /**
+     * This method is run by the shutdown hook. It makes a last checkpoint of
+     * the chunks written since the previous one. If a thread is holding the
+     * lock (e.g. it is the one that exits), the previous checkpoint is kept
+     * as is.
+     */
+    private void checkpointOnShutdown(){
+        try {
+            if (!lock.writeLock().tryLock(SHUTDOWN_WAIT, TimeUnit.MILLISECONDS)){
+                return;
+            }
+        } catch (InterruptedException e){
+            return;
+        }
+        try {
+            if (!finished && raf != null && checkpointPolicy.hasPendingChunks()){
+                checkpoint();
+            }
+        } catch (IOException e){
+            System.err.println("Unable to save the metadata on exit");
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * This method creates the downloaded file, or opens it on resume. It is
+     * called before the RangeGetters start, since in transfer and mmap
+     * modes they write to the file themselves.
+     * @throws IOException if the file couldn't be created or opened
+     */
+    public void open() throws IOException {
+        // Checks if the metadata exists. If not, we are on a regular
+        // download
+        if (!metadataFile.isOnResume()){
+            fileToDownload.createNewFile();
+            preallocate();
+        } else {
+            // If the metadata exists, we are on resume mode and the
+            // metadata object was already mapped from it
+            updateBytesDownloaded(metaDataObject);
+        }
+
+        raf = new RandomAccessFile(fileToDownload, "rw");
+        channel = raf.getChannel();
+        if (raf.length() < mFileSize){
+            // Preallocation isn't supported here. The file gets its full size
+            // anyway, without allocating it (a sparse file) - transferFrom
+            // doesn't write past the end of the file, and a window can't be
+            // mapped past it
+            raf.setLength(mFileSize);
+            System.out.println("Preallocation is not supported, using a sparse file");
+        }
+        if (MMAP_MODE.equals(mode)){
+            int numOfWindows = Math.toIntExact((mFileSize + mapWindow - 1) / mapWindow);
+            windows = new MappedByteBuffer[numOfWindows];
+            dirtyWindows = new boolean[numOfWindows];
+        }
+        Runtime.getRuntime().addShutdownHook(new Thread(this::checkpointOnShutdown));
+    }
+
+    /**
+     * This method allocates the whole file on the disk before the download
+     * starts, with the fallocate tool. Otherwise the file grows from many
+     * ranges at once, and the file system allocates it in many small
+     * extents - which is slow, and leaves the file fragmented.
+     */
+    private void preallocate(){
+        try {
+            Process process = new ProcessBuilder("fallocate", "-l", Long.toString(mFileSize), fileToDownload.getPath())
+                    .redirectErrorStream(true)
+                    .redirectOutput(ProcessBuilder.Redirect.DISCARD)
+                    .start();
+            if (process.waitFor() == 0){
+                System.out.println("Preallocated " + mFileSize + " bytes");
+            }
+        } catch (IOException e){
+            // No fallocate tool, the file is made sparse instead
+        } catch (InterruptedException e){
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * @return true if the RangeGetters write to the file themselves with
+     * transferChunk, instead of putting chunks in the queue
+     */
+    public boolean isDirectMode(){
+        return TRANSFER_MODE.equals(mode) || MMAP_MODE.equals(mode);
+    }
+
+    /**
+     * This method stops the writer before the whole file was downloaded.
+     * Should be called once the RangeGetters are done, so no more chunks
+     * are put in the queue.
+     */
+    public void stop(){
+        this.stopped = true;
+    }
+
+    /**
+     * @return true while there are chunks to write, or to wait for
+     */
+    private boolean isWriting(){
+        return this.mDownloaded.get() < this.mFileSize && !(stopped && queue.isEmpty());
+    }
+
+    /**
+     * This method is run by the additional writer threads. They write
+     * chunks from the queue until the whole file was written.
+     */
+    private void drainQueue(){
+        try (FileChannel file = openWriterChannel()){
+            ChunkCoalescer coalescer = newCoalescer();
+            while (isWriting()) {
+                readChunk(file, coalescer, metaDataObject);
+            }
+            // Runs of chunks a hedged twin already wrote
+            writeRuns(file, coalescer.takeAll(), metaDataObject);
         } catch (InterruptedException | IOException e){
             System.err.println("Unable to write data to downloaded file");
             System.err.println("Download failed");
             System.exit(1);
         }
-        // Once the metadata is updated, we want to save it to the disk so if
-        // the program is exited or stopped, we can resume to the download
-        serialize(metaData);
     }
 
-
     /**
      * Writer thread - as long there are chunks in the queue, reads them
-     * and writes in file.
-     * If no chunks in queue, waits until a chunk is added
+     * and writes in file, together with numOfWriters - 1 more threads.
+     * If no chunks in queue, waits until a chunk is added.
+     * In transfer and mmap modes, waits for the RangeGetters and makes the
+     * checkpoints that are due.
      */
     @Override
     public void run() {
-        Metadata metaDataObject;
-        boolean metaDataExists = metaData.exists();
-
         try {
-            // Checks if the metadata file exists. If not, we are on a
-            // regular download
-            if (!metaDataExists){
-                fileToDownload.createNewFile();
-                metaData.createNewFile();
-                metaDataObject = new Metadata(numOfChunks);
-            } else {
-                // If the metadata file exists, we are on resume mode and
-                // should use the metadata
-                metaDataObject = deserialize();
-                updateBytesDownloaded(metaDataObject);
-            }
-
-            RandomAccessFile raf = new RandomAccessFile(fileToDownload, "rw");
             System.out.println("Downloading...");
 
+            Thread[] writers = new Thread[isDirectMode() ? 0 : numOfWriters - 1];
+            for (int i = 0; i < writers.length; i++){
+                writers[i] = new Thread(this::drainQueue);
+                writers[i].start();
+            }
+            FileChannel file = isDirectMode() ? null : openWriterChannel();
+            ChunkCoalescer coalescer = newCoalescer();
+
             int previousProgress = 0;
-            while (this.mDownloaded < this.mFileSize) {
+            while (isWriting()) {
                 double progress = getProgress();
                 int intProgress = (int)progress;
 
@@ -166,17 +497,48 @@ public class Writer implements Runnable {
                     System.out.println("Downloaded " + intProgress + "%");
                     previousProgress = intProgress;
                 }
-                readChunk(raf, metaDataObject);
+                if (isDirectMode()){
+                    Thread.sleep(Math.min(PROGRESS_WAIT, checkpointPolicy.millisUntilDue()));
+                    checkpointIfDue();
+                } else {
+                    readChunk(file, coalescer, metaDataObject);
+                }
+            }
+            if (file != null){
+                writeRuns(file, coalescer.takeAll(), metaDataObject);
+                file.close();
+            }
+
+            // The file is closed once the other writer threads are done
+            // with it
+            for (Thread thread : writers){
+                thread.join();
+            }
+
+            boolean complete = this.mDownloaded.get() >= this.mFileSize;
+            lock.writeLock().lock();
+            try {
+                if (!complete && checkpointPolicy.hasPendingChunks()){
+                    checkpoint();
+                }
+                finished = true;
+                raf.close();
+            } finally {
+                lock.writeLock().unlock();
+            }
+            if (!complete){
+                // The metadata is kept for the resume
+                return;
             }
             System.out.println("Download succeeded");
 
-        } catch (IOException ex){
-            System.err.println("Unable to create file");
+        } catch (InterruptedException | IOException ex){
+            System.err.println("Unable to write data to downloaded file");
             System.err.println("Download failed");
             System.exit(1);
         }
 
-        if (!metaData.delete()){
+        if (!metadataFile.delete()){
             System.err.println("Unable to delete the metadata file");
             System.err.println("Download failed");
             System.exit(1);
@@ -185,23 +547,18 @@ public class Writer implements Runnable {
 
     /**
      * This method updates the number of bytes that has been downloaded.
-     * It goes over the metadata array and checks which elements are true -
-     * downloaded, and sums them up.
+     * It counts the downloaded chunks in the metadata. All of them are
+     * chunkSize bytes, except for the last chunk of the file.
      * @param metadata the metadata object we read from
      */
     private void updateBytesDownloaded(Metadata metadata){
-        int downloadedBytes = 0;
-        for (int i = 0; i < metadata.getMetadataSize(); i++){
-            if (metadata.get(i)){
-                if (i == (metadata.getMetadataSize() - 1)){
-                    int lastChunkSize =  this.mFileSize % (int) CHUNK_SIZE;
-                    downloadedBytes += lastChunkSize;
-                } else {
-                    downloadedBytes += CHUNK_SIZE;
-                }
-            }
+        int lastIndex = metadata.getMetadataSize() - 1;
+        long downloadedBytes = metadata.getNumOfDownloadedChunks() * (long) chunkSize;
+        if (lastIndex >= 0 && metadata.get(lastIndex)){
+            long lastChunkSize = this.mFileSize - lastIndex * (long) chunkSize;
+            downloadedBytes -= (long) chunkSize - lastChunkSize;
         }
-        this.mDownloaded = downloadedBytes;
+        this.mDownloaded.set(downloadedBytes);
     }
 
     /**
@@ -210,6 +567,6 @@ public class Writer implements Runnable {
      * @return the percentage
      */
     public double getProgress(){
-        return ((double) this.mDownloaded / this.mFileSize) * 100;
+        return ((double) this.mDownloaded.get() / this.mFileSize) * 100;
     }
 }
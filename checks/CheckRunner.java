@@ -0,0 +1,125 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * This class runs the download manager for the checks, in a JVM of its own
+ * (it exits when it is done), and compares what it downloaded with the file
+ * that was served.
+ */
+public class CheckRunner {
+
+    private final static long TIME_TO_WAIT = 30; // Minutes to wait for a download
+
+    /**
+     * This method downloads a file into a directory with the download
+     * manager, with the classes this JVM runs with.
+     * @param url the file to download
+     * @param numOfConnections the number of connections
+     * @param directory the directory to download into
+     * @param options system properties for the download manager, e.g.
+     * "-Ddm.engine=nio"
+     * @return true if the download manager said the download succeeded
+     */
+    public static boolean download(String url, int numOfConnections, Path directory, String... options)
+            throws IOException, InterruptedException {
+        List<String> command = new ArrayList<String>();
+        command.add(Paths.get(System.getProperty("java.home"), "bin", "java").toString());
+        command.add("-cp");
+        command.add(System.getProperty("java.class.path"));
+        command.addAll(List.of(options));
+        command.add("DownloadManager");
+        command.add(url);
+        command.add(Integer.toString(numOfConnections));
+
+        File log = directory.resolve("download.log").toFile();
+        Process process = new ProcessBuilder(command)
+                .directory(directory.toFile())
+                .redirectErrorStream(true)
+                .redirectOutput(log)
+                .start();
+        if (!process.waitFor(TIME_TO_WAIT, TimeUnit.MINUTES)){
+            process.destroyForcibly();
+            System.out.println("The download didn't finish in " + TIME_TO_WAIT + " minutes, see " + log);
+            return false;
+        }
+        if (process.exitValue() != 0){
+            System.out.println("The download failed, see " + log);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * This method downloads a file and compares it with the one that was
+     * served, and prints the result.
+     * @param name a name for the check
+     * @param server the server of the file
+     * @param file the file that is served
+     * @param numOfConnections the number of connections
+     * @param options system properties for the download manager
+     * @return true if the download is the same as the file
+     */
+    public static boolean check(String name, RangeServer server, Path file, int numOfConnections, String... options)
+            throws IOException, InterruptedException {
+        Path directory = Files.createTempDirectory("dm-check");
+        try {
+            boolean same = download(server.getURL(), numOfConnections, directory, options)
+                    && sha256(file).equals(sha256(directory.resolve(file.getFileName())));
+            // A download that failed is kept, to look into
+            System.out.println(name + ": " + (same ? "OK" : "FAILED, see " + directory));
+            if (same){
+                delete(directory);
+            }
+            return same;
+        } catch (IOException e){
+            System.out.println(name + ": FAILED - " + e);
+            return false;
+        }
+    }
+
+    /**
+     * @return the SHA-256 of the file, in hex
+     */
+    public static String sha256(Path file) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e){
+            throw new IOException(e);
+        }
+        ByteBuffer buffer = ByteBuffer.allocateDirect(1024 * 1024);
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            while (channel.read(buffer) >= 0){
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return HexFormat.of().formatHex(digest.digest());
+    }
+
+    /**
+     * This method deletes a directory and everything in it.
+     */
+    public static void delete(Path directory) throws IOException {
+        try (Stream<Path> paths = Files.walk(directory)){
+            for (Path path : (Iterable<Path>) paths.sorted(Comparator.reverseOrder())::iterator){
+                Files.delete(path);
+            }
+        }
+    }
+}
@@ -0,0 +1,48 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * This check downloads a file of random bytes from a dribbling RangeServer,
+ * with every engine and writer, and compares the checksums. The reads of the
+ * download manager get a few bytes at a time, so a chunk that was queued
+ * before it was full would show up as a different checksum.
+ *     java DribbleCheck [FILE-SIZE] [MAX-CONCURRENT-CONNECTIONS]
+ */
+public class DribbleCheck {
+
+    private final static long FILE_SIZE = 16 * 1024 * 1024 + 123; // Not a multiple of the chunk size
+    private final static int CONNECTIONS = 8;
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long fileSize = args.length > 0 ? Long.parseLong(args[0]) : FILE_SIZE;
+        int numOfConnections = args.length > 1 ? Integer.parseInt(args[1]) : CONNECTIONS;
+
+        Path directory = Files.createTempDirectory("dm-dribble");
+        Path file = directory.resolve("dribble.bin");
+        byte[] bytes = new byte[(int) fileSize];
+        new Random().nextBytes(bytes);
+        Files.write(file, bytes);
+
+        RangeServer server = new RangeServer(file, true);
+        boolean passed = true;
+        try {
+            // Small chunks, so most of them take more than one read
+            String chunkSize = "-Ddm.chunk.bytes=65536";
+            passed &= CheckRunner.check("url engine, queue writer", server, file, numOfConnections, chunkSize);
+            passed &= CheckRunner.check("url engine, transfer writer", server, file, numOfConnections, chunkSize,
+                    "-Ddm.writer=transfer");
+            passed &= CheckRunner.check("url engine, mmap writer", server, file, numOfConnections, chunkSize,
+                    "-Ddm.writer=mmap");
+            passed &= CheckRunner.check("http2 engine", server, file, numOfConnections, chunkSize,
+                    "-Ddm.engine=http2");
+            passed &= CheckRunner.check("nio engine", server, file, numOfConnections, chunkSize,
+                    "-Ddm.engine=nio");
+        } finally {
+            server.stop();
+            CheckRunner.delete(directory);
+        }
+        System.exit(passed ? 0 : 1);
+    }
+}
@@ -0,0 +1,148 @@
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * This class serves one file over HTTP with range requests, for the checks.
+ * It is built on the HTTP server of the JDK, so it needs no other tools.
+ * A dribbling server sends the body in small writes of random size, each
+ * flushed on its own with Nagle's algorithm off, and sometimes pauses between
+ * them. The reads of the download manager then return partial chunks, as
+ * they do on a slow or lossy network.
+ * It can also be run on its own:
+ *     java RangeServer FILE PORT [dribble]
+ */
+public class RangeServer {
+
+    private final static int MAX_DRIBBLE_BYTES = 1500; // Largest write of a dribbling server
+    private final static double PAUSE_CHANCE = 0.001; // Chance of a pause after a write of a dribbling server
+    private final static int BUFFER_SIZE = 64 * 1024; // Size of the writes of a server that doesn't dribble
+
+    private HttpServer server;
+    private ExecutorService executor;
+    private Path file;
+    private boolean dribble;
+
+    public RangeServer(Path file, boolean dribble) throws IOException {
+        this(file, dribble, 0);
+    }
+
+    /**
+     * This constructor starts a server on the loopback address.
+     * @param file the file to serve
+     * @param dribble true to send the bodies in small writes
+     * @param port the port, or 0 for a free port
+     * @throws IOException if the server couldn't start
+     */
+    public RangeServer(Path file, boolean dribble, int port) throws IOException {
+        this.file = file;
+        this.dribble = dribble;
+        // Sends every small write in a TCP segment of its own
+        System.setProperty("sun.net.httpserver.nodelay", "true");
+        this.server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        this.executor = Executors.newCachedThreadPool();
+        this.server.setExecutor(executor);
+        this.server.createContext("/" + file.getFileName(), this::handle);
+        this.server.start();
+    }
+
+    /**
+     * @return the URL of the file
+     */
+    public String getURL(){
+        return "http://localhost:" + server.getAddress().getPort() + "/" + file.getFileName();
+    }
+
+    public void stop(){
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    private void handle(HttpExchange exchange) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)){
+            long fileSize = channel.size();
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().add("ETag", "\"" + fileSize + "\"");
+            if (exchange.getRequestMethod().equals("HEAD")){
+                exchange.getResponseHeaders().add("Content-Length", Long.toString(fileSize));
+                exchange.sendResponseHeaders(200, -1);
+                return;
+            }
+
+            long start = 0;
+            long end = fileSize - 1;
+            int responseCode = 200;
+            String range = exchange.getRequestHeaders().getFirst("Range");
+            if (range != null && range.startsWith("bytes=")){
+                String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                start = Long.parseLong(bounds[0]);
+                if (!bounds[1].isEmpty()){
+                    end = Math.min(end, Long.parseLong(bounds[1]));
+                }
+                if (start > end){
+                    exchange.getResponseHeaders().add("Content-Range", "bytes */" + fileSize);
+                    exchange.sendResponseHeaders(416, -1);
+                    return;
+                }
+                responseCode = 206;
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + fileSize);
+            }
+            exchange.sendResponseHeaders(responseCode, end - start + 1);
+            sendBody(channel, start, end, exchange.getResponseBody());
+        } catch (IOException e){
+            // The download manager closed the connection, e.g. when a
+            // segment was stolen or cancelled
+        } finally {
+            exchange.close();
+        }
+    }
+
+    private void sendBody(FileChannel channel, long start, long end, OutputStream body) throws IOException {
+        Random random = new Random();
+        byte[] buffer = new byte[dribble ? MAX_DRIBBLE_BYTES : BUFFER_SIZE];
+        long position = start;
+        while (position <= end){
+            int size = (int) Math.min(end - position + 1, dribble ? 1 + random.nextInt(MAX_DRIBBLE_BYTES) : BUFFER_SIZE);
+            ByteBuffer wrapper = ByteBuffer.wrap(buffer, 0, size);
+            while (wrapper.hasRemaining()){
+                if (channel.read(wrapper, position + wrapper.position()) < 0){
+                    throw new IOException("The file was truncated");
+                }
+            }
+            body.write(buffer, 0, size);
+            position += size;
+            if (dribble){
+                body.flush();
+                if (random.nextDouble() < PAUSE_CHANCE){
+                    try {
+                        Thread.sleep(1 + random.nextInt(20));
+                    } catch (InterruptedException e){
+                        throw new IOException("Interrupted while sending", e);
+                    }
+                }
+            }
+        }
+        body.close();
+    }
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2){
+            System.err.println("usage:\n\tjava RangeServer FILE PORT [dribble]");
+            System.exit(1);
+        }
+        RangeServer server = new RangeServer(Paths.get(args[0]), args.length > 2 && args[2].equals("dribble"),
+                Integer.parseInt(args[1]));
+        System.out.println("Serving " + server.getURL());
+    }
+}
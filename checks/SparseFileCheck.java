@@ -0,0 +1,52 @@
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+/**
+ * This check downloads a file larger than 4GB from a RangeServer, and
+ * compares the checksums. The file is sparse, so it takes almost no disk on
+ * the server side - it is mostly zeros, with blocks of random bytes around
+ * the offsets where 32 bit arithmetic would break (2GB and 4GB) and at its
+ * ends. The downloaded copy does take the whole size on disk.
+ *     java SparseFileCheck [FILE-SIZE] [MAX-CONCURRENT-CONNECTIONS]
+ */
+public class SparseFileCheck {
+
+    private final static long FILE_SIZE = 5L * 1024 * 1024 * 1024 + 123; // Not a multiple of the chunk size
+    private final static int CONNECTIONS = 8;
+    private final static int BLOCK_SIZE = 64 * 1024; // Size of the blocks of random bytes
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        long fileSize = args.length > 0 ? Long.parseLong(args[0]) : FILE_SIZE;
+        int numOfConnections = args.length > 1 ? Integer.parseInt(args[1]) : CONNECTIONS;
+
+        Path directory = Files.createTempDirectory("dm-sparse");
+        Path file = directory.resolve("sparse.bin");
+        Random random = new Random();
+        byte[] block = new byte[BLOCK_SIZE];
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file.toFile(), "rw")){
+            randomAccessFile.setLength(fileSize);
+            long[] offsets = {0, (1L << 31) - BLOCK_SIZE / 2, (1L << 32) - BLOCK_SIZE / 2, fileSize - BLOCK_SIZE};
+            for (long offset : offsets){
+                if (offset < 0 || offset + BLOCK_SIZE > fileSize){
+                    continue;
+                }
+                random.nextBytes(block);
+                randomAccessFile.seek(offset);
+                randomAccessFile.write(block);
+            }
+        }
+
+        RangeServer server = new RangeServer(file, false);
+        boolean passed;
+        try {
+            passed = CheckRunner.check("sparse file of " + fileSize + " bytes", server, file, numOfConnections);
+        } finally {
+            server.stop();
+            CheckRunner.delete(directory);
+        }
+        System.exit(passed ? 0 : 1);
+    }
+}